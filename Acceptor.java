@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+// Thread that owns the listen socket, drains the backlog in batches and hands connections to the select loops
+class Acceptor implements Runnable {
+    private final ServerSocketChannel listenChannel;
+    private final HttpDispatch[] loops;
+    private final boolean leastConnections;
+    private int nextLoop;
+
+    private long accepted;
+    private long batches;
+
+    public Acceptor(ServerSocketChannel listenChannel, HttpDispatch[] loops, boolean leastConnections) {
+        this.listenChannel = listenChannel;
+        this.loops = loops;
+        this.leastConnections = leastConnections;
+    }
+
+    public void run() {
+        Selector selector;
+        try {
+            selector = Selector.open();
+            this.listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            Log.error("Could not start acceptor: ", ex.getMessage());
+            return;
+        }
+
+        boolean[] woken = new boolean[this.loops.length];
+        while (!HttpDispatch.shutdown) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Drain the backlog, only waking each loop once per batch
+                Arrays.fill(woken, false);
+                for (int i = 0; i < Utils.AcceptBatch; i++) {
+                    SocketChannel clientChannel = this.listenChannel.accept();
+                    if (clientChannel == null) {
+                        break;
+                    }
+                    int loop = pickLoop();
+                    this.loops[loop].handOff(clientChannel);
+                    woken[loop] = true;
+                    this.accepted += 1;
+                }
+                for (int i = 0; i < this.loops.length; i++) {
+                    if (woken[i]) {
+                        this.loops[i].wakeup();
+                    }
+                }
+                this.batches += 1;
+            } catch (IOException ex) {
+                Log.error("Failed to accept connection: ", ex.getMessage());
+            }
+        }
+    }
+
+    private int pickLoop() {
+        if (!this.leastConnections) {
+            this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+            return this.nextLoop;
+        }
+
+        int best = 0;
+        for (int i = 1; i < this.loops.length; i++) {
+            if (this.loops[i].getLoad() < this.loops[best].getLoad()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public String getStats() {
+        return "accepted=" + this.accepted + ", batches=" + this.batches;
+    }
+}
\ No newline at end of file
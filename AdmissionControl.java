@@ -0,0 +1,76 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+// Per select loop connection limit, grown or cut AIMD-style each window by comparing handle time p99 with
+// AdmissionTargetLatency. Connections over the limit get a 503 and are closed.
+class AdmissionControl {
+    private static final int MaxSamples = 4096;
+
+    // Sent as is to connections turned away at accept, so it carries no Date
+    public static final ByteBuffer Overloaded = ByteBuffer.wrap(("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Server: " + Utils.ServerName + "\r\n"
+            + "Retry-After: " + Utils.AdmissionRetryAfter + "\r\n"
+            + "Content-Length: 0\r\n"
+            + "Connection: close\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+
+    private final long[] samples = new long[MaxSamples];
+    private int sampleCount;
+    private long windowStart = System.currentTimeMillis();
+
+    private volatile int limit;
+    private volatile long p99Micros;
+
+    public AdmissionControl() {
+        this.limit = Utils.AdmissionInitialLimit;
+    }
+
+    public boolean admit(int connections) {
+        return connections <= this.limit;
+    }
+
+    public void recordLatency(long nanos) {
+        if (this.sampleCount < MaxSamples) {
+            this.samples[this.sampleCount++] = nanos;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - this.windowStart >= Utils.AdmissionWindow) {
+            adjust();
+            this.windowStart = now;
+        }
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    // p99 latency of the last complete window, in microseconds
+    public long getP99Micros() {
+        return this.p99Micros;
+    }
+
+    private void adjust() {
+        if (this.sampleCount == 0) {
+            return;
+        }
+
+        Arrays.sort(this.samples, 0, this.sampleCount);
+        long p99 = this.samples[Math.min((int) (this.sampleCount * 0.99), this.sampleCount - 1)];
+        this.p99Micros = p99 / 1000;
+        this.sampleCount = 0;
+
+        if (p99 <= Utils.AdmissionTargetLatency * 1_000_000) {
+            if (this.limit < Utils.AdmissionMaxLimit) {
+                this.limit += 1;
+            }
+        } else {
+            int reduced = (int) ((long) this.limit * Utils.AdmissionBackoffPercent / 100);
+            this.limit = Math.max(reduced, Utils.AdmissionMinLimit);
+            Log.info("Admission window over target, p99 (us): ", this.p99Micros);
+            Log.info("Admission limit reduced to ", this.limit);
+        }
+    }
+}
\ No newline at end of file
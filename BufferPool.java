@@ -0,0 +1,80 @@
+import java.nio.*;
+import java.util.*;
+
+
+// Per select loop pool of I/O buffers in a few size classes, only the owning loop uses it
+class BufferPool {
+    private static final int[] SizeClasses = { 1024, 4 * 1024, 16 * 1024, 64 * 1024 };
+
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final int maxFree;
+    private final boolean direct;
+
+    private long acquired;
+    private long allocated;
+
+    public BufferPool(int maxFree) {
+        this(maxFree, true);
+    }
+
+    // Heap buffers for short-lived pools, where direct memory would be allocated per owner and never reused
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxFree, boolean direct) {
+        this.maxFree = maxFree;
+        this.direct = direct;
+        this.free = new ArrayDeque[SizeClasses.length];
+        for (int i = 0; i < SizeClasses.length; i++) {
+            this.free[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    // Returns a cleared buffer with at least minCapacity bytes of room
+    public ByteBuffer acquire(int minCapacity) {
+        this.acquired += 1;
+        int sizeClass = sizeClassFor(minCapacity);
+        if (sizeClass == -1) {
+            this.allocated += 1;
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        ByteBuffer buffer = this.free[sizeClass].poll();
+        if (buffer == null) {
+            this.allocated += 1;
+            buffer = this.direct ? ByteBuffer.allocateDirect(SizeClasses[sizeClass]) : ByteBuffer.allocate(SizeClasses[sizeClass]);
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != this.direct) {
+            return;
+        }
+
+        for (int i = 0; i < SizeClasses.length; i++) {
+            if (buffer.capacity() == SizeClasses[i]) {
+                if (this.free[i].size() < this.maxFree) {
+                    buffer.clear();
+                    this.free[i].push(buffer);
+                }
+                return;
+            }
+        }
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder("acquired=" + this.acquired + ", allocated=" + this.allocated + ", free=");
+        for (int i = 0; i < SizeClasses.length; i++) {
+            sb.append((i == 0 ? "" : "/") + this.free[i].size());
+        }
+        return sb.toString();
+    }
+
+    private static int sizeClassFor(int capacity) {
+        for (int i = 0; i < SizeClasses.length; i++) {
+            if (capacity <= SizeClasses[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
\ No newline at end of file
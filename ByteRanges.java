@@ -0,0 +1,96 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+// Byte ranges of a Range header resolved against the file length, an unusable header means the whole file
+class ByteRanges {
+    public final long[] starts;
+    public final long[] ends;
+    public final int count;
+
+    private ByteRanges(long[] starts, long[] ends, int count) {
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+    }
+
+    public long length(int i) {
+        return this.ends[i] - this.starts[i] + 1;
+    }
+
+    // Returns the satisfiable ranges (end inclusive, possibly none), or null if the header should be ignored
+    public static ByteRanges parse(String header, long fileLength) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > Utils.MaxRanges) {
+            return null;
+        }
+
+        long[] starts = new long[specs.length];
+        long[] ends = new long[specs.length];
+        int count = 0;
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+
+                long start, end;
+                if (dash == 0) {
+                    // Suffix range, the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    start = Math.max(fileLength - suffix, 0);
+                    end = fileLength - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, fileLength - 1);
+                }
+
+                if (start < fileLength) {
+                    starts[count] = start;
+                    ends[count] = end;
+                    count++;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new ByteRanges(starts, ends, count);
+    }
+
+    // Separator for the parts of a multipart/byteranges body
+    public static String newBoundary() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+
+    // If-Range holds the entity tag or Last-Modified date the client's partial copy came from, ranges only apply if it still matches
+    public static boolean ifRangeMatches(String ifRange, long lastModified, String etag) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Strong comparison, a weak tag never matches
+            return ifRange.equals(etag);
+        }
+        try {
+            return Utils.parseFormattedDate(ifRange).getTime() / 1000 == lastModified / 1000;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
\ No newline at end of file
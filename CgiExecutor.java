@@ -0,0 +1,152 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+// Bounded pool of threads running dynamic files off the select loops, rejects past the queue limit and kills on timeout
+class CgiExecutor {
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService reaper;
+    private final ExecutorService feeders;
+    private final long timeoutMillis;
+    private final long streamDelayMillis;
+
+    public CgiExecutor(int threads, int queueSize, long timeoutMillis, long streamDelayMillis) {
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), daemonThreads("cgi-worker"));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(daemonThreads("cgi-reaper"));
+        this.feeders = Executors.newCachedThreadPool(daemonThreads("cgi-stdin"));
+        this.timeoutMillis = timeoutMillis;
+        this.streamDelayMillis = streamDelayMillis;
+    }
+
+    // Returns false if the pool and its queue are full
+    public boolean submit(Runnable task) {
+        try {
+            this.workers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // Runs the process to completion with the body (if any) on its stdin, returning its output or null on a non-zero exit code
+    public byte[] run(ProcessBuilder pb, RequestBody body) throws Exception {
+        Process p = pb.start();
+        feed(p, body);
+
+        // Killing the process tree closes its stdout, which unblocks the read loop below
+        ScheduledFuture<?> kill = scheduleKill(p);
+        try {
+            InputStream is = p.getInputStream();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            int nRead;
+            byte[] data = new byte[1024];
+            while ((nRead = is.read(data, 0, data.length)) != -1) {
+                buffer.write(data, 0, nRead);
+            }
+            buffer.flush();
+
+            int exitCode = p.waitFor();
+            if (!kill.cancel(false)) {
+                throw new TimeoutException("Process timed out after " + this.timeoutMillis + "ms");
+            }
+
+            return exitCode == 0 ? buffer.toByteArray() : null;
+        } finally {
+            kill.cancel(false);
+            p.destroy();
+        }
+    }
+
+    // Runs the process to completion, handing its output to the stream as it is produced. Returns the exit code.
+    public int stream(ProcessBuilder pb, CgiStream stream, RequestBody body) throws Exception {
+        Process p = pb.start();
+        feed(p, body);
+        ScheduledFuture<?> kill = scheduleKill(p);
+        ScheduledFuture<?> commit = this.reaper.schedule(stream::commit, this.streamDelayMillis, TimeUnit.MILLISECONDS);
+        try {
+            InputStream is = p.getInputStream();
+            int nRead;
+            byte[] data = new byte[Utils.CgiChunkSize];
+            while ((nRead = is.read(data, 0, data.length)) != -1) {
+                // Blocks while the client is behind, which in turn stalls the process on its full pipe
+                stream.write(data, nRead);
+            }
+
+            int exitCode = p.waitFor();
+            if (!kill.cancel(false)) {
+                throw new TimeoutException("Process timed out after " + this.timeoutMillis + "ms");
+            }
+
+            return exitCode;
+        } finally {
+            kill.cancel(false);
+            commit.cancel(false);
+            p.descendants().forEach(ProcessHandle::destroyForcibly);
+            p.destroy();
+        }
+    }
+
+    // Writes the body to the process's stdin on its own thread as it arrives, so a script that writes output before
+    // reading all of its input can't deadlock against the thread reading that output
+    private void feed(Process p, RequestBody body) throws IOException {
+        if (body == null) {
+            p.getOutputStream().close();
+            return;
+        }
+        this.feeders.execute(() -> {
+            try (OutputStream stdin = p.getOutputStream()) {
+                if (!body.writeTo(stdin)) {
+                    // Client went away mid-body, don't let the script act on part of it
+                    p.descendants().forEach(ProcessHandle::destroyForcibly);
+                    p.destroyForcibly();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Script exited or closed its stdin without reading all of it
+            } finally {
+                body.discard();
+            }
+        });
+    }
+
+    // Kills the process tree once the timeout expires, unless the returned future is cancelled first
+    public ScheduledFuture<?> scheduleKill(Process p) {
+        return this.reaper.schedule(() -> {
+            p.descendants().forEach(ProcessHandle::destroyForcibly);
+            p.destroyForcibly();
+        }, this.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getTimeoutMillis() {
+        return this.timeoutMillis;
+    }
+
+    public int getQueueDepth() {
+        return this.workers.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return this.workers.getActiveCount();
+    }
+
+    // Busy and queued tasks as a fraction of what the pool accepts before rejecting, 1 means new scripts get 503
+    public double getSaturation() {
+        int capacity = this.workers.getMaximumPoolSize() + this.workers.getQueue().size() + this.workers.getQueue().remainingCapacity();
+        return (double) (getActiveCount() + getQueueDepth()) / capacity;
+    }
+
+    public void shutdown() {
+        this.workers.shutdown();
+        this.reaper.shutdown();
+        this.feeders.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+
+// Bounded hand-off of a script's output to the loop writing it, held back until committed
+class CgiStream {
+    private final int maxBufferedBytes;
+    private final Consumer<CgiStream> onCommit;
+    private final Runnable onData;
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private int bufferedBytes;
+    private boolean committed;
+    private boolean finished;
+    private boolean failed;
+    private boolean cancelled;
+    private boolean consumerWaiting;
+
+    public CgiStream(int maxBufferedBytes, Consumer<CgiStream> onCommit, Runnable onData) {
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.onCommit = onCommit;
+        this.onData = onData;
+    }
+
+    // Producer side, called from the CGI worker thread
+
+    public void write(byte[] data, int length) throws IOException, InterruptedException {
+        boolean commitNow = false;
+        synchronized (this) {
+            while (this.bufferedBytes >= this.maxBufferedBytes && !this.cancelled) {
+                if (!this.committed) {
+                    // Nobody will drain an uncommitted stream, so it's time to start sending
+                    this.committed = true;
+                    commitNow = true;
+                    break;
+                }
+                wait();
+            }
+            if (this.cancelled) {
+                throw new IOException("Client went away");
+            }
+            this.chunks.add(Arrays.copyOf(data, length));
+            this.bufferedBytes += length;
+        }
+
+        if (commitNow) {
+            this.onCommit.accept(this);
+        } else {
+            signalConsumer();
+        }
+    }
+
+    // Returns true if the stream was already committed, otherwise the caller still owns the buffered output
+    public boolean finish(boolean success) {
+        synchronized (this) {
+            this.finished = true;
+            this.failed = !success;
+            if (!this.committed) {
+                this.committed = true;
+                return false;
+            }
+        }
+        signalConsumer();
+        return true;
+    }
+
+    public synchronized byte[] drain() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(this.bufferedBytes);
+        for (byte[] chunk : this.chunks) {
+            output.write(chunk, 0, chunk.length);
+        }
+        this.chunks.clear();
+        this.bufferedBytes = 0;
+        return output.toByteArray();
+    }
+
+    // Called by the commit timer, does nothing if the script already finished or started streaming
+    public void commit() {
+        synchronized (this) {
+            if (this.committed) {
+                return;
+            }
+            this.committed = true;
+        }
+        this.onCommit.accept(this);
+    }
+
+    // Consumer side, called from the select loop
+
+    // Returns the next chunk, or null if there is nothing buffered (the loop will be woken when there is)
+    public synchronized byte[] poll() {
+        byte[] chunk = this.chunks.poll();
+        if (chunk != null) {
+            this.bufferedBytes -= chunk.length;
+            notifyAll();
+        } else if (!this.finished) {
+            this.consumerWaiting = true;
+        }
+        return chunk;
+    }
+
+    public synchronized boolean isFinished() {
+        return this.finished && this.chunks.isEmpty();
+    }
+
+    public synchronized boolean isFailed() {
+        return this.failed;
+    }
+
+    public synchronized void cancel() {
+        this.cancelled = true;
+        notifyAll();
+    }
+
+    private void signalConsumer() {
+        synchronized (this) {
+            if (!this.consumerWaiting) {
+                return;
+            }
+            this.consumerWaiting = false;
+        }
+        this.onData.run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.charset.StandardCharsets;
+
+
+// Long-lived worker processes for one script (CGI_WORKER=1), framed over stdin/stdout:
+// "REQUEST <envCount> <bodyLength>" + env lines + body in, "RESPONSE <exitCode> <length>" + output back
+class CgiWorkerPool {
+    private final String path;
+    private final int min;
+    private final int max;
+    private final int maxRequests;
+    private final long acquireTimeoutMillis;
+    private final CgiExecutor executor;
+
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+    private int total;
+
+    private static class Worker {
+        final Process process;
+        final OutputStream out;
+        final InputStream in;
+        int requests;
+
+        Worker(Process process) {
+            this.process = process;
+            this.out = new BufferedOutputStream(process.getOutputStream());
+            this.in = new BufferedInputStream(process.getInputStream());
+        }
+    }
+
+    public CgiWorkerPool(String path, int min, int max, int maxRequests, long acquireTimeoutMillis, CgiExecutor executor) throws IOException {
+        this.path = path;
+        this.min = min;
+        this.max = Math.max(min, max);
+        this.maxRequests = maxRequests;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.executor = executor;
+
+        // Pre-fork the minimum number of workers
+        for (int i = 0; i < this.min; i++) {
+            this.idle.add(spawn());
+        }
+    }
+
+    // Runs one request on a warm worker, returning its output or null on a non-zero exit code
+    public byte[] execute(Map<String, String> environment, RequestBody body) throws Exception {
+        Worker worker = acquire();
+        ScheduledFuture<?> kill = this.executor.scheduleKill(worker.process);
+        byte[] result;
+        try {
+            writeRequest(worker, environment, body);
+            result = readResponse(worker);
+        } catch (Exception e) {
+            // The worker's pipe is in an unknown state, so never hand it out again
+            release(worker, true);
+            if (!kill.cancel(false)) {
+                throw new TimeoutException("Worker timed out: " + this.path);
+            }
+            throw e;
+        }
+
+        if (!kill.cancel(false)) {
+            release(worker, true);
+            throw new TimeoutException("Worker timed out: " + this.path);
+        }
+
+        worker.requests += 1;
+        release(worker, worker.requests >= this.maxRequests);
+        return result;
+    }
+
+    public void shutdown() {
+        Worker worker;
+        while ((worker = this.idle.poll()) != null) {
+            worker.process.destroy();
+        }
+    }
+
+    public synchronized String getStats() {
+        return this.path + ": workers=" + this.total + ", idle=" + this.idle.size();
+    }
+
+    private Worker acquire() throws Exception {
+        Worker worker = this.idle.poll();
+        while (worker == null || !worker.process.isAlive()) {
+            if (worker != null) {
+                retire(worker);
+            }
+
+            synchronized (this) {
+                if (this.total < this.max) {
+                    return spawn();
+                }
+            }
+
+            worker = this.idle.poll(this.acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (worker == null) {
+                throw new TimeoutException("No worker available for " + this.path);
+            }
+        }
+        return worker;
+    }
+
+    private void release(Worker worker, boolean recycle) {
+        if (!recycle && worker.process.isAlive()) {
+            this.idle.add(worker);
+            return;
+        }
+
+        retire(worker);
+
+        // Respawn so the pool never drops below its warm minimum
+        synchronized (this) {
+            if (this.total < this.min) {
+                try {
+                    this.idle.add(spawn());
+                } catch (IOException e) {
+                    Log.error("Failed to respawn worker: ", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void retire(Worker worker) {
+        worker.process.descendants().forEach(ProcessHandle::destroyForcibly);
+        worker.process.destroyForcibly();
+        synchronized (this) {
+            this.total -= 1;
+        }
+    }
+
+    private synchronized Worker spawn() throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(this.path);
+        pb.environment().put("CGI_WORKER", "1");
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+        Worker worker = new Worker(pb.start());
+        this.total += 1;
+        return worker;
+    }
+
+    // The worker reads the whole body before answering, so it is streamed straight into the pipe
+    private void writeRequest(Worker worker, Map<String, String> environment, RequestBody body) throws IOException, InterruptedException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("REQUEST " + environment.size() + " " + (body == null ? 0 : body.length) + "\n");
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            sb.append(entry.getKey() + "=" + entry.getValue().replace('\n', ' ') + "\n");
+        }
+        worker.out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        if (body != null && !body.writeTo(worker.out)) {
+            throw new IOException("Client went away mid-body");
+        }
+        worker.out.flush();
+    }
+
+    private byte[] readResponse(Worker worker) throws IOException {
+        String[] header = readLine(worker.in).split(" ");
+        if (header.length != 3 || !header[0].equals("RESPONSE")) {
+            throw new IOException("Invalid worker response from " + this.path);
+        }
+        int exitCode = Integer.parseInt(header[1]);
+        int length = Integer.parseInt(header[2]);
+
+        byte[] output = worker.in.readNBytes(length);
+        if (output.length != length) {
+            throw new IOException("Worker closed pipe mid-response: " + this.path);
+        }
+        return exitCode == 0 ? output : null;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Worker exited");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
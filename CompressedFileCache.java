@@ -0,0 +1,78 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Shared LRU cache of compressed static files keyed by path and coding, remembers files that don't shrink
+class CompressedFileCache {
+    private final long capacityBytes;
+    private long currentBytes;
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<String, Variant>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Variant {
+        final long lastModified;
+        final long length;
+        final byte[] contentBytes;
+
+        Variant(long lastModified, long length, byte[] contentBytes) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentBytes = contentBytes;
+        }
+
+        long size() {
+            return this.contentBytes == null ? 0 : this.contentBytes.length;
+        }
+    }
+
+    public CompressedFileCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    // Returns the file's contents in the given coding, or null if compressing doesn't make it smaller
+    public byte[] get(File file, long lastModified, long length, byte[] contentBytes, String encoding) {
+        String key = file.getPath() + " " + encoding;
+        synchronized (this) {
+            Variant variant = this.variants.get(key);
+            if (variant != null && variant.lastModified == lastModified && variant.length == length) {
+                this.hits.incrementAndGet();
+                return variant.contentBytes;
+            }
+        }
+        this.misses.incrementAndGet();
+
+        // Compress outside the lock so other loops aren't held up
+        byte[] compressed = ContentEncoder.compress(contentBytes, encoding);
+        if (compressed.length >= contentBytes.length) {
+            compressed = null;
+        }
+        if (contentBytes.length != length || (compressed != null && compressed.length > this.capacityBytes)) {
+            // File changed since its metadata was read, or too big to keep
+            return compressed;
+        }
+
+        synchronized (this) {
+            Variant previous = this.variants.put(key, new Variant(lastModified, length, compressed));
+            if (previous != null) {
+                this.currentBytes -= previous.size();
+            }
+            this.currentBytes += compressed == null ? 0 : compressed.length;
+
+            Iterator<Variant> iterator = this.variants.values().iterator();
+            while (this.currentBytes > this.capacityBytes && iterator.hasNext()) {
+                Variant eldest = iterator.next();
+                iterator.remove();
+                this.currentBytes -= eldest.size();
+            }
+        }
+        return compressed;
+    }
+
+    public synchronized String getStats() {
+        return "variants=" + this.variants.size() + ", bytes=" + this.currentBytes + "/" + this.capacityBytes
+                + ", hits=" + this.hits.get() + ", misses=" + this.misses.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,96 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+// gzip/deflate for whole bodies or streams, streams sync-flush each piece and must be finished or ended
+class ContentEncoder {
+    public static final String Gzip = "gzip";
+    public static final String Deflate = "deflate";
+
+    private static final Set<String> CompressibleTypes = new HashSet<String>(Arrays.asList("application/json", "application/javascript",
+            "application/x-javascript", "application/xml", "application/xhtml+xml", "image/svg+xml"));
+    private static final byte[] GzipHeader = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private boolean started;
+
+    public ContentEncoder(String encoding) {
+        this.gzip = encoding.equals(Gzip);
+        this.deflater = new Deflater(Utils.CompressionLevel, this.gzip);
+    }
+
+    // Coding to send a body of this type and length in, or null to send it as is
+    public static String negotiate(HttpRequest request, String contentType, long length) {
+        if (!Utils.Compression || !isCompressible(contentType) || length < Utils.CompressMinSize) {
+            return null;
+        }
+        return request.acceptsGzip ? Gzip : request.acceptsDeflate ? Deflate : null;
+    }
+
+    public static boolean isCompressible(String contentType) {
+        return contentType != null && (contentType.startsWith("text/") || CompressibleTypes.contains(contentType));
+    }
+
+    public static byte[] compress(byte[] input, String encoding) {
+        return new ContentEncoder(encoding).finish(input);
+    }
+
+    // Compresses the next piece of a stream, everything given so far can be decompressed from the output
+    public byte[] update(byte[] input) {
+        return encode(input, false);
+    }
+
+    // Compresses the last piece of a stream and ends it
+    public byte[] finish(byte[] input) {
+        try {
+            return encode(input, true);
+        } finally {
+            this.deflater.end();
+        }
+    }
+
+    // Frees the native memory of an encoder that won't be finished
+    public void end() {
+        this.deflater.end();
+    }
+
+    private byte[] encode(byte[] input, boolean last) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(input.length / 2, 64));
+        if (this.gzip && !this.started) {
+            output.write(GzipHeader, 0, GzipHeader.length);
+        }
+        this.started = true;
+
+        this.crc.update(input);
+        this.deflater.setInput(input);
+        if (last) {
+            this.deflater.finish();
+            while (!this.deflater.finished()) {
+                output.write(this.buffer, 0, this.deflater.deflate(this.buffer));
+            }
+            if (this.gzip) {
+                writeIntLE(output, (int) this.crc.getValue());
+                writeIntLE(output, (int) this.deflater.getBytesRead());
+            }
+        } else {
+            int length;
+            do {
+                length = this.deflater.deflate(this.buffer, 0, this.buffer.length, Deflater.SYNC_FLUSH);
+                output.write(this.buffer, 0, length);
+            } while (length == this.buffer.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream output, int value) {
+        output.write(value);
+        output.write(value >>> 8);
+        output.write(value >>> 16);
+        output.write(value >>> 24);
+    }
+}
\ No newline at end of file
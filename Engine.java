@@ -0,0 +1,8 @@
+// A select loop or the virtual thread engine, each with its own connection limit and metrics
+interface Engine {
+    int getConnectionCount();
+
+    AdmissionControl getAdmission();
+
+    Metrics getMetrics();
+}
\ No newline at end of file
@@ -0,0 +1,100 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.file.Files;
+
+
+// Shared LRU cache of static file contents, invalidated when lastModified or length change
+class FileCache {
+    private final long capacityBytes;
+    private final long maxEntryBytes;
+    private long currentBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final byte[] contentBytes;
+
+        Entry(long lastModified, long length, byte[] contentBytes) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentBytes = contentBytes;
+        }
+    }
+
+    public FileCache(long capacityBytes, long maxEntryBytes) {
+        this.capacityBytes = capacityBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, capacityBytes);
+    }
+
+    public byte[] get(File file) throws IOException {
+        return get(file, file.lastModified(), file.length());
+    }
+
+    // Same, with lastModified and length already known to the caller
+    public byte[] get(File file, long lastModified, long length) throws IOException {
+        String key = file.getPath();
+
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                this.hits.incrementAndGet();
+                return entry.contentBytes;
+            }
+        }
+        this.misses.incrementAndGet();
+
+        // Read outside the lock so a slow disk doesn't stall other loops
+        byte[] contentBytes = Files.readAllBytes(file.toPath());
+        if (contentBytes.length != length || contentBytes.length > this.maxEntryBytes) {
+            // File changed while reading or is too big to be worth caching
+            return contentBytes;
+        }
+
+        synchronized (this) {
+            Entry previous = this.entries.put(key, new Entry(lastModified, length, contentBytes));
+            if (previous != null) {
+                this.currentBytes -= previous.contentBytes.length;
+            }
+            this.currentBytes += contentBytes.length;
+
+            // Evict least recently used entries until we are back under budget
+            Iterator<Entry> iterator = this.entries.values().iterator();
+            while (this.currentBytes > this.capacityBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                this.currentBytes -= eldest.contentBytes.length;
+                this.evictions.incrementAndGet();
+            }
+        }
+
+        return contentBytes;
+    }
+
+    public boolean isCacheable(long length) {
+        return length <= this.maxEntryBytes;
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.currentBytes = 0;
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public synchronized String getStats() {
+        return "entries=" + this.entries.size() + ", bytes=" + this.currentBytes + "/" + this.capacityBytes
+                + ", hits=" + this.hits.get() + ", misses=" + this.misses.get() + ", evictions=" + this.evictions.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Shared cache of parsed .htaccess files by directory, revalidated every HtaccessCheckInterval ms,
+// remembering Authorization values that passed. Passwords are plaintext, {SHA}, $apr1$ or $1$.
+class HtaccessCache {
+    private static final String Itoa64 = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private final long checkIntervalMillis;
+    private final int maxVerified;
+    private final ConcurrentHashMap<String, Rules> directories = new ConcurrentHashMap<String, Rules>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong verifications = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    // Compiled .htaccess of one directory, or no rules (realm null) if it has none or it is invalidly formatted
+    private static class Rules {
+        final long lastModified;
+        final long length;
+        final String realm;
+        final Map<String, String> passwords;
+        final Set<String> verified = ConcurrentHashMap.newKeySet();
+        volatile long checkedAt;
+
+        Rules(long lastModified, long length, String realm, Map<String, String> passwords, long checkedAt) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.realm = realm;
+            this.passwords = passwords;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    public HtaccessCache(long checkIntervalMillis, int maxVerified) {
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.maxVerified = maxVerified;
+    }
+
+    // Returns the realm to challenge with if the request's credentials don't satisfy the directory's .htaccess, otherwise null
+    public String check(File directory, HttpRequest request) throws IOException {
+        Rules rules = getRules(directory);
+        if (rules.realm == null) {
+            return null;
+        }
+
+        String authorization = request.authorization;
+        if (authorization == null) {
+            return rules.realm;
+        }
+        if (rules.verified.contains(authorization)) {
+            this.hits.incrementAndGet();
+            return null;
+        }
+
+        this.verifications.incrementAndGet();
+        String[] credentials = request.getCredentials();
+        String stored = credentials == null ? null : rules.passwords.get(credentials[0]);
+        if (stored == null || !matches(credentials[1], stored)) {
+            return rules.realm;
+        }
+        if (rules.verified.size() < this.maxVerified) {
+            rules.verified.add(authorization);
+        }
+        return null;
+    }
+
+    private Rules getRules(File directory) throws IOException {
+        String key = directory.getPath();
+        long now = System.currentTimeMillis();
+        Rules rules = this.directories.get(key);
+        if (rules != null && now - rules.checkedAt < this.checkIntervalMillis) {
+            return rules;
+        }
+
+        File htaccess = new File(directory, ".htaccess");
+        long lastModified = htaccess.lastModified();
+        long length = htaccess.length();
+        if (rules != null && rules.lastModified == lastModified && rules.length == length) {
+            rules.checkedAt = now;
+            return rules;
+        }
+
+        // Loops recompiling the same directory at once each parse it, whichever is stored last wins
+        this.reloads.incrementAndGet();
+        rules = compile(htaccess, lastModified, length, now);
+        this.directories.put(key, rules);
+        return rules;
+    }
+
+    private static Rules compile(File htaccess, long lastModified, long length, long now) throws IOException {
+        // lastModified is 0 when the file doesn't exist
+        if (lastModified == 0) {
+            return new Rules(0, 0, null, null, now);
+        }
+
+        String realm = null, user = null;
+        Map<String, String> passwords = new HashMap<String, String>();
+        for (String line : Files.readAllLines(htaccess.toPath(), StandardCharsets.UTF_8)) {
+            String[] keyValuePair = line.trim().split("\\s+", 2);
+            if (keyValuePair.length < 2) {
+                continue;
+            }
+            if (keyValuePair[0].equals("AuthName")) {
+                realm = keyValuePair[1].startsWith("\"") ? keyValuePair[1] : "\"" + keyValuePair[1] + "\"";
+            } else if (keyValuePair[0].equals("User")) {
+                user = keyValuePair[1];
+            } else if (keyValuePair[0].equals("Password") && user != null) {
+                passwords.put(user, keyValuePair[1]);
+                user = null;
+            }
+        }
+
+        // If .htaccess file is invalidly formatted, ignore
+        if (realm == null || passwords.isEmpty()) {
+            Log.debug("Ignoring invalid .htaccess: ", htaccess.getPath());
+            return new Rules(lastModified, length, null, null, now);
+        }
+        return new Rules(lastModified, length, realm, passwords, now);
+    }
+
+    private static boolean matches(String password, String stored) {
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (stored.startsWith("{SHA}")) {
+                byte[] expected = Base64.getDecoder().decode(stored.substring(5));
+                return MessageDigest.isEqual(MessageDigest.getInstance("SHA-1").digest(passwordBytes), expected);
+            } else if (stored.startsWith("$apr1$") || stored.startsWith("$1$")) {
+                String magic = stored.substring(0, stored.indexOf('$', 1) + 1);
+                int saltEnd = stored.indexOf('$', magic.length());
+                if (saltEnd < 0) {
+                    return false;
+                }
+                String salt = stored.substring(magic.length(), saltEnd);
+                byte[] expected = stored.getBytes(StandardCharsets.US_ASCII);
+                return MessageDigest.isEqual(md5Crypt(passwordBytes, magic, salt).getBytes(StandardCharsets.US_ASCII), expected);
+            } else if (stored.startsWith("$")) {
+                Log.error("Unsupported password hash in .htaccess");
+                return false;
+            }
+        } catch (IllegalArgumentException | NoSuchAlgorithmException e) {
+            Log.error("Invalid password hash in .htaccess: ", e.getMessage());
+            return false;
+        }
+        return MessageDigest.isEqual(passwordBytes, stored.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // MD5-crypt as used by htpasswd -m ($apr1$) and crypt(3) ($1$), returns the full "$magic$salt$hash" string
+    private static String md5Crypt(byte[] password, String magic, String salt) throws NoSuchAlgorithmException {
+        byte[] saltBytes = salt.substring(0, Math.min(salt.length(), 8)).getBytes(StandardCharsets.US_ASCII);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+
+        md5.update(password);
+        md5.update(saltBytes);
+        md5.update(password);
+        byte[] alternate = md5.digest();
+
+        md5.update(password);
+        md5.update(magic.getBytes(StandardCharsets.US_ASCII));
+        md5.update(saltBytes);
+        for (int remaining = password.length; remaining > 0; remaining -= 16) {
+            md5.update(alternate, 0, Math.min(remaining, 16));
+        }
+        for (int i = password.length; i != 0; i >>>= 1) {
+            md5.update((i & 1) != 0 ? 0 : password[0]);
+        }
+        byte[] result = md5.digest();
+
+        // Deliberately slow, 1000 more rounds
+        for (int i = 0; i < 1000; i++) {
+            md5.update((i & 1) != 0 ? password : result);
+            if (i % 3 != 0) {
+                md5.update(saltBytes);
+            }
+            if (i % 7 != 0) {
+                md5.update(password);
+            }
+            md5.update((i & 1) != 0 ? result : password);
+            result = md5.digest();
+        }
+
+        StringBuilder sb = new StringBuilder(magic).append(new String(saltBytes, StandardCharsets.US_ASCII)).append('$');
+        int[][] groups = { { 0, 6, 12 }, { 1, 7, 13 }, { 2, 8, 14 }, { 3, 9, 15 }, { 4, 10, 5 } };
+        for (int[] group : groups) {
+            appendBase64(sb, ((result[group[0]] & 0xff) << 16) | ((result[group[1]] & 0xff) << 8) | (result[group[2]] & 0xff), 4);
+        }
+        appendBase64(sb, result[11] & 0xff, 2);
+        return sb.toString();
+    }
+
+    private static void appendBase64(StringBuilder sb, int value, int length) {
+        for (int i = 0; i < length; i++) {
+            sb.append(Itoa64.charAt(value & 0x3f));
+            value >>>= 6;
+        }
+    }
+
+    public String getStats() {
+        return "directories=" + this.directories.size() + ", verifiedHits=" + this.hits.get() + ", verifications=" + this.verifications.get() + ", reloads=" + this.reloads.get();
+    }
+}
\ No newline at end of file
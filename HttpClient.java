@@ -9,6 +9,17 @@ public class HttpClient {
     public static void main(String[] args) {
         if (args.length == 0) {
             System.out.println("Usage: java HttpClient <method> <url>");
+            System.out.println("       java HttpClient load [-host h] [-port p] [-c connections] [-d seconds] [-rps n] [-pipeline depth] [-keepalive true|false] [-mix bench/mix.jsonl]");
+            return;
+        }
+
+        // Load generator mode, see LoadGenerator
+        if (args[0].equals("load")) {
+            try {
+                LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                System.out.println("Error: " + e.getMessage());
+            }
             return;
         }
 
@@ -3,29 +3,105 @@ import java.net.*;
 import java.util.*;
 import java.nio.*;
 import java.nio.channels.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
-class HttpDispatch implements Runnable {
+class HttpDispatch implements Runnable, Engine {
     private int id;
-    private int currentConnections;
+    private volatile int currentConnections;
     private Selector selector;
-    private Map<String, String> config;
-    private Map<String, String> virtualHosts;
+
+    // Adaptive connection limit for this loop
+    private final AdmissionControl admission;
+
+    // Answers this loop's requests
+    private final RequestHandler handler;
+
+    // Counters and phase latencies, recorded only by this loop
+    private final Metrics metrics = new Metrics();
+
+    // Header, response and chunk buffers borrowed by this loop's connections
+    private final BufferPool bufferPool;
+
+    // Read, idle and write deadlines of this loop's connections, and the ones that expired on the current tick
+    private final TimerWheel timers;
+    private final List<TimerWheel.Timeout> expired = new ArrayList<TimerWheel.Timeout>();
+
+    // Connections accepted by the Acceptor thread and not yet registered with this loop
+    private final ConcurrentLinkedQueue<SocketChannel> handOffs = new ConcurrentLinkedQueue<SocketChannel>();
+    private final AtomicInteger pendingHandOffs = new AtomicInteger();
+
+    // Drain the backlog on each OP_ACCEPT (own SO_REUSEPORT socket) or take one connection (legacy shared socket)
+    private final boolean drainAccepts;
+    private long accepted;
+    private long emptyAccepts;
+
+    // Responses finished by CGI worker threads, waiting to be picked up by this loop
+    private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<Completion>();
 
     public static volatile boolean shutdown = false;
 
-    public HttpDispatch(int id, ServerSocketChannel listenChannel, Map<String, String> config, Map<String, String> virtualHosts) throws Exception {
+    private static class Completion {
+        final SelectionKey key;
+        final HttpResponse response;
+
+        Completion(SelectionKey key, HttpResponse response) {
+            this.key = key;
+            this.response = response;
+        }
+    }
+
+    // listenChannel is null when connections are handed over by an Acceptor
+    public HttpDispatch(int id, ServerSocketChannel listenChannel, boolean drainAccepts) throws Exception {
         this.id = id;
         this.currentConnections = 0;
+        this.drainAccepts = drainAccepts;
 
         this.selector = Selector.open();
-        listenChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        if (listenChannel != null) {
+            listenChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        }
+
+        this.admission = new AdmissionControl();
+        this.handler = new RequestHandler(this);
+        this.bufferPool = new BufferPool((int) Utils.BufferPoolMaxFree);
+        this.timers = new TimerWheel(Utils.TimerWheelSlots, Utils.TimerTickMillis);
+    }
+
+    public String getBufferPoolStats() {
+        return this.bufferPool.getStats();
+    }
+
+    public String getAcceptStats() {
+        return "connections=" + this.currentConnections + ", accepted=" + this.accepted + ", emptyAccepts=" + this.emptyAccepts;
+    }
+
+    // Called from the Acceptor thread, which wakes the loop once it has handed over its whole batch
+    public void handOff(SocketChannel clientChannel) {
+        this.pendingHandOffs.incrementAndGet();
+        this.handOffs.add(clientChannel);
+    }
+
+    public void wakeup() {
+        this.selector.wakeup();
+    }
 
-        this.config = config;
-        this.virtualHosts = virtualHosts;
+    // Connections this loop has or is about to register, read by the Acceptor to balance load
+    public int getLoad() {
+        return this.currentConnections + this.pendingHandOffs.get();
+    }
+
+    public int getConnectionCount() {
+        return this.currentConnections;
+    }
+
+    public AdmissionControl getAdmission() {
+        return this.admission;
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
     }
 
     public static void requestShutdown() {
@@ -33,15 +109,50 @@ class HttpDispatch implements Runnable {
     }
 
     public void run() {
+        Log.attach();
         while (!shutdown || this.currentConnections > 0) {
-            // Block until at least one channel is ready
+            // Block until at least one channel is ready or the next deadline is due
             try {
-                this.selector.select();
+                this.selector.select(this.timers.millisUntilNext(System.currentTimeMillis()));
             } catch (IOException ex) {
-                System.out.println("[ERROR] Selector error: " + ex.getMessage());
+                Log.error("Selector error: ", ex.getMessage());
                 break;
             }
 
+            // Resume connections whose dynamic response is ready, or whose streamed response has more output
+            Completion completion;
+            while ((completion = this.completions.poll()) != null) {
+                RequestState state = (RequestState) completion.key.attachment();
+                if (!completion.key.isValid()) {
+                    if (completion.response != null) {
+                        completion.response.close();
+                    }
+                    continue;
+                }
+                if (completion.response != null) {
+                    state.enqueue(completion.response, state.awaitingRequest);
+                    state.awaitingRequest = null;
+                }
+                completion.key.interestOps(withBodyRead(state, state.responses.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+                updateTimeout(completion.key, state);
+            }
+
+            // Register connections the Acceptor handed over
+            SocketChannel handedOff;
+            while ((handedOff = this.handOffs.poll()) != null) {
+                this.pendingHandOffs.decrementAndGet();
+                try {
+                    registerClient(handedOff);
+                } catch (IOException ex) {
+                    Log.error("Failed to register connection: ", ex.getMessage());
+                    try {
+                        handedOff.close();
+                    } catch (IOException cex) {
+                        Log.error("Failed to close channel: ", cex.getMessage());
+                    }
+                }
+            }
+
             // Handle all ready keys
             Set readyKeys = this.selector.selectedKeys();
             Iterator iterator = readyKeys.iterator();
@@ -55,250 +166,274 @@ class HttpDispatch implements Runnable {
                         // Create client channel
                         SocketChannel clientChannel = serverChannel.accept();
                         if (clientChannel == null) {
+                            // Another loop sharing the socket got there first
+                            this.emptyAccepts += 1;
                             break;
                         }
-                        clientChannel.configureBlocking(false);
-                        this.currentConnections += 1;
+                        registerClient(clientChannel);
 
-                        // Register client channel with selector
-                        SelectionKey clientKey = clientChannel.register(this.selector, SelectionKey.OP_READ);
-
-                        // Attach channel state
-                        RequestState state = new RequestState();
-                        clientKey.attach(state);
-
-                        // If max connections reached, send 503 (we don't want to be hovering at the limit, slightly below)
-                        if (this.currentConnections > Utils.MaxConnectionsPerThread) {
-                            System.out.println("[DEBUG] Max connections reached");
-                            state.response = new HttpResponse(503, "Service Unavailable");
-                            clientKey.interestOps(SelectionKey.OP_WRITE);
+                        // This loop's own socket, so take the rest of the backlog while we're awake
+                        for (int i = 1; this.drainAccepts && i < Utils.AcceptBatch; i++) {
+                            clientChannel = serverChannel.accept();
+                            if (clientChannel == null) {
+                                break;
+                            }
+                            registerClient(clientChannel);
                         }
 
                     } else if ((key.readyOps() & SelectionKey.OP_READ) != 0) {
                         SocketChannel clientChannel = (SocketChannel) key.channel();
                         RequestState state = (RequestState) key.attachment();
 
-                        // If connection timed out, send 408
-                        if (System.currentTimeMillis() - state.connectionTime > 3000) {
-                            System.out.println("[DEBUG] Connection timed out");
-                            state.response = new HttpResponse(408, "Request Timeout");
-                            key.interestOps(SelectionKey.OP_WRITE);
+                        int bytesRead;
+                        long readStart = System.nanoTime();
+                        try {
+                            bytesRead = state.readFrom(clientChannel, this.bufferPool);
+                            state.parseNanos += System.nanoTime() - readStart;
+                        } catch (IOException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            rejectRequest(key, state, e);
                             continue;
                         }
 
-                        // Assuming 1024 bytes is enough
-                        ByteBuffer bytes = ByteBuffer.allocate(1024);
-                        int bytesRead = clientChannel.read(bytes);
-                        state.appendInBytes(bytes, bytesRead);
-
-                        if (state.doneReading) {
-                            try {
-                                // Prepare input buffer to read and handle request
-                                state.in.flip();
-                                state.request.parseBody(state.body);
-                                state.response = handleRequest(clientChannel.socket(), state.request);
-                            } catch (Exception e) {
-                                System.out.println("[DEBUG] Failed to handle request: " + e.getMessage());
-                                state.response = new HttpResponse(400, "Bad request");
-                            }
-
-                            // Prepare output buffer to read and switch to write
-                            key.interestOps(SelectionKey.OP_WRITE);
+                        // Client closed its side before finishing a request
+                        if (bytesRead == -1) {
+                            closeConnection(key, state);
+                            continue;
                         }
-                    } else if ((key.readyOps() & SelectionKey.OP_WRITE) != 0) {
+                        this.metrics.addBytesIn(bytesRead);
+
+                        // Stop reading while earlier responses are still being written
+                        processRequests(key, state);
+                    }
+
+                    // A body streaming to a script is read alongside the response being written
+                    if (key.isValid() && (key.readyOps() & SelectionKey.OP_WRITE) != 0 && ((RequestState) key.attachment()).currentResponse() != null) {
                         SocketChannel clientChannel = (SocketChannel) key.channel();
                         RequestState state = (RequestState) key.attachment();
 
-                        // Write response until empty, then close channel if timeout or not keep-alive
-                        if (state.response.outputBuffer.hasRemaining()) {
-                            clientChannel.write(state.response.outputBuffer);
+                        // Write the oldest queued response until empty, then close channel if timeout or not keep-alive
+                        HttpResponse response = state.currentResponse();
+                        response.encode(this.bufferPool);
+                        if (response.hasPendingBuffers()) {
+                            if (response.gatherBuffers != null) {
+                                this.metrics.addBytesOut(clientChannel.write(response.gatherBuffers));
+                            } else {
+                                this.metrics.addBytesOut(clientChannel.write(response.outputBuffer));
+                            }
+                        } else if (response.hasStreamingBody() && state.bodyPosition < response.contentLength) {
+                            // Let the kernel copy file pages straight to the socket, a bounded chunk per event
+                            long transferred = response.transferBody(state.bodyPosition, Utils.TransferChunkSize, clientChannel);
+                            state.bodyPosition += transferred;
+                            this.metrics.addBytesOut(transferred);
+                        } else if (response.hasPendingStream()) {
+                            ByteBuffer streamBuffer = response.nextStreamBuffer();
+                            if (streamBuffer != null) {
+                                this.metrics.addBytesOut(clientChannel.write(streamBuffer));
+                            } else if (response.hasPendingStream()) {
+                                // Park until the script produces more output
+                                key.interestOps(withBodyRead(state, 0));
+                            }
                         } else {
-                            if (state.response.statusCode == 408 || state.request == null || !state.request.keepAlive) {
-                                clientChannel.close();
-                                this.currentConnections -= 1;
+                            state.responses.poll();
+                            state.bodyPosition = 0;
+                            response.close();
+                            recordResponse(response, clientChannel.socket().getInetAddress());
+                            if (response.closeConnection) {
+                                closeConnection(key, state);
+                            } else if (state.responses.isEmpty()) {
+                                // Answer pipelined requests that were waiting, or go back to reading
+                                processRequests(key, state);
                             }
                         }
+
+                        // Any progress pushes the write-stall deadline out
+                        if (key.isValid()) {
+                            updateTimeout(key, state);
+                        }
                     }
                 } catch (Exception ex) {
-                    System.out.println("[ERROR] Failed to process request: " + ex.getMessage());
-                    key.cancel();
+                    Log.error("Failed to process request: ", ex.getMessage());
                     try {
-                        key.channel().close();
-                        this.currentConnections -= 1;
+                        closeConnection(key, (RequestState) key.attachment());
                     } catch (IOException cex) {
-                        System.out.println("[ERROR] Failed to close channel: " + cex.getMessage());
+                        Log.error("Failed to close channel: ", cex.getMessage());
                     }
                 }
             }
+
+            expireTimeouts();
         }
     }
 
-    private HttpResponse handleRequest(Socket connectionSocket, HttpRequest request) throws Exception {
-        int statusCode;
-        String statusMessage;
-
-        // Check heartbeat request
-        if (request.path.equals("/load")) {
-            System.out.println("[DEBUG] Heartbeat request: " + this.currentConnections + ", " + Utils.MaxConnectionsPerThread);
-            return this.currentConnections < Utils.MaxConnectionsPerThread ? new HttpResponse(200, "OK") : new HttpResponse(503, "Service Unavailable");
+    // Called once a response is fully written
+    private void recordResponse(HttpResponse response, InetAddress remote) {
+        long now = System.nanoTime();
+        this.metrics.recordResponse(response.statusCode, response.request);
+        this.metrics.write.record(now - response.enqueuedNanos);
+        if (response.request != null) {
+            this.metrics.handle.record(response.enqueuedNanos - response.request.startNanos);
+            // Server-side time only, so big files and slow clients don't drag the limit down
+            this.admission.recordLatency(response.enqueuedNanos - response.request.startNanos);
         }
+        Log.access(response, response.request, remote, response.request == null ? 0 : now - response.request.startNanos);
+    }
 
-        // Check virtual host is valid
-        String virtualHostPath = this.virtualHosts.get(request.headers.get("Host"));
-        if (virtualHostPath == null) {
-            virtualHostPath = this.virtualHosts.get("__DEFAULT__");
+    private void registerClient(SocketChannel clientChannel) throws IOException {
+        clientChannel.configureBlocking(false);
+        this.accepted += 1;
+
+        // Over the limit, turn the connection away before it costs a key, state or buffers
+        if (!this.admission.admit(this.currentConnections + 1)) {
+            Log.info("Max connections reached");
+            clientChannel.write(AdmissionControl.Overloaded.duplicate());
+            clientChannel.shutdownOutput();
+
+            // Swallow a request that already arrived, closing with unread data would reset the connection
+            ByteBuffer discard = this.bufferPool.acquire(Utils.InitialHeaderBufferSize);
+            clientChannel.read(discard);
+            this.bufferPool.release(discard);
+            clientChannel.close();
+            return;
         }
+        this.currentConnections += 1;
 
-        // Make sure no relative path
-        String[] parts = request.path.split("/");
-        for (String part : parts) {
-            if (part.equals("..")) {
-                System.out.println("[DEBUG] Relative path not allowed");
-                return new HttpResponse(400, "Malformed Request");
-            }
-        }
+        // Register client channel with selector
+        SelectionKey clientKey = clientChannel.register(this.selector, SelectionKey.OP_READ);
 
-        // Add default file if path ends in /
-        String path = System.getProperty("user.dir") + virtualHostPath + request.path;
-        if (path.endsWith("/")) {
-            File mobileIndex = new File(path + "index_m.html");
-            if (request.isMobileUserAgent && mobileIndex.exists()) {
-                path += "index_m.html";
-            } else {
-                path += "index.html";
-            }
-        }
+        // Attach channel state
+        RequestState state = new RequestState(clientKey);
+        clientKey.attach(state);
+        updateTimeout(clientKey, state);
+    }
 
-        // Check if file exists and isn't a directory
-        File file = new File(path);
-        if (!file.exists() || file.isDirectory()) {
-            System.out.println("[DEBUG] File not found: " + path);
-            return new HttpResponse(404, "Not Found");
+    // Keeps the connection's deadline in step with what it is waiting for. Called after every event, so a body read
+    // or a write stall is timed from the last progress, while headers must arrive in full within Timeout.
+    private void updateTimeout(SelectionKey key, RequestState state) {
+        TimerWheel.Timeout timeout = state.timeout;
+        long now = System.currentTimeMillis();
+        int ops = key.interestOps();
+        if ((ops & SelectionKey.OP_WRITE) != 0) {
+            this.timers.schedule(timeout, TimerWheel.Timeout.WriteStall, now + Utils.TimeoutLength);
+        } else if ((ops & SelectionKey.OP_READ) == 0) {
+            // Waiting on a CGI worker, which has its own timeout
+            this.timers.cancel(timeout);
+        } else if (state.isIdle()) {
+            if (!timeout.isScheduled() || timeout.kind != TimerWheel.Timeout.Idle) {
+                this.timers.schedule(timeout, TimerWheel.Timeout.Idle, now + Utils.KeepAliveTimeout);
+            }
+        } else if (state.request == null && state.receiving == null) {
+            if (!timeout.isScheduled() || timeout.kind != TimerWheel.Timeout.HeaderRead) {
+                this.timers.schedule(timeout, TimerWheel.Timeout.HeaderRead, now + Utils.TimeoutLength);
+            }
+        } else {
+            this.timers.schedule(timeout, TimerWheel.Timeout.BodyRead, now + Utils.TimeoutLength);
         }
+    }
 
-        // Get content type
-        Path filePath = Path.of(path);
-        String contentType;
-        try {
-            contentType = file.canExecute() ? "text/plain" : Files.probeContentType(filePath);
-        } catch (Exception e) {
-            System.out.println("[DEBUG] Failed to get content type: " + e.getMessage());
-            return new HttpResponse(400, "Malformed Request");
-        }
+    // Handles every deadline that came due since the last tick
+    private void expireTimeouts() {
+        this.timers.expire(System.currentTimeMillis(), this.expired);
+        for (TimerWheel.Timeout timeout : this.expired) {
+            SelectionKey key = timeout.key;
+            if (!key.isValid()) {
+                continue;
+            }
 
-        // Check if content type is accepted
-        if (request.acceptTypes != null && !request.acceptTypes.contains("*/*") && !request.acceptTypes.contains(contentType)) {
-            System.out.println("[DEBUG] Content type not accepted by user: " + path + ", " + contentType);
-            return new HttpResponse(406, "Not Acceptable");
+            RequestState state = (RequestState) key.attachment();
+            try {
+                if (timeout.kind == TimerWheel.Timeout.HeaderRead || timeout.kind == TimerWheel.Timeout.BodyRead) {
+                    // Client started a request and stopped sending, send 408
+                    Log.debug("Connection timed out");
+                    state.enqueue(new HttpResponse(408, "Request Timeout"), null);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    updateTimeout(key, state);
+                } else {
+                    // Idle keep-alive connections and clients that stopped reading are just dropped
+                    closeConnection(key, state);
+                }
+            } catch (IOException e) {
+                Log.error("Failed to close channel: ", e.getMessage());
+            }
         }
+        this.expired.clear();
+    }
 
-        // Check if file is modified since If-Modified-Since
-        long lastModifiedMillis = file.lastModified();
-        Date lastModifiedDate = new Date(lastModifiedMillis);
-        if (!file.canExecute() && request.ifModifiedSinceDate != null && lastModifiedDate.before(request.ifModifiedSinceDate)) {
-            System.out.println("[DEBUG] File not modified since " + request.ifModifiedSinceDate + ": " + path);
-            return new HttpResponse(304, "Not Modified");
+    // Closes a client connection and gives everything it borrowed back to the pool
+    private void closeConnection(SelectionKey key, RequestState state) throws IOException {
+        key.cancel();
+        if (state != null) {
+            this.timers.cancel(state.timeout);
+            state.release(this.bufferPool);
         }
+        this.currentConnections -= 1;
+        key.channel().close();
+    }
 
-        // Check if file has authentication requirements
-        File htaccess = new File(file.getParent() + "/.htaccess");
-        if (htaccess.exists()) {
-            BufferedReader reader = new BufferedReader(new FileReader(htaccess));
-            String line;
-            String authName = null, user = null, password = null;
-            while ((line = reader.readLine()) != null) {
-                String[] keyValuePair = line.split(" ");
-                if (keyValuePair[0].equals("AuthName")) {
-                    authName = keyValuePair[1];
-                } else if (keyValuePair[0].equals("User")) {
-                    user = keyValuePair[1];
-                } else if (keyValuePair[0].equals("Password")) {
-                    password = keyValuePair[1];
+    // Handles every complete request already buffered on the connection, queueing their responses in order
+    private void processRequests(SelectionKey key, RequestState state) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        while (state.doneReading && state.awaitingRequest == null && state.responses.size() < Utils.MaxPipelineDepth) {
+            HttpRequest request = state.request;
+
+            // Handle request
+            this.metrics.parse.record(state.parseNanos);
+            state.parseNanos = 0;
+            request.startNanos = System.nanoTime();
+            HttpResponse response = this.handler.handle(request, clientChannel.socket(), posted -> postResponse(key, posted));
+
+            // Park the request until its dynamic response is posted back, later ones wait behind it
+            if (response == null) {
+                state.awaitingRequest = request;
+            } else {
+                state.enqueue(response, request);
+                if (response.closeConnection) {
+                    break;
                 }
             }
 
-            // If .htaccess file is invalidly formatted, ignore
-            boolean validAuthConfig = authName != null && user != null && password != null;
-            if (validAuthConfig && (request.credentials == null || !request.credentials[0].equals(user) || !request.credentials[1].equals(password))) {
-                System.out.println("[DEBUG] Invalid credentials");
-                return new HttpResponse(401, "Unauthorized", authName);
+            try {
+                long parseStart = System.nanoTime();
+                state.nextRequest(this.bufferPool);
+                state.parseNanos += System.nanoTime() - parseStart;
+            } catch (Exception e) {
+                rejectRequest(key, state, e);
+                return;
             }
         }
-        
-        int contentLength = 0;
-        byte[] contentBytes = null;
-        switch (request.method) {
-            case HttpMethod.GET:
-                if (file.canExecute()) {
-                    contentBytes = executeDynamicFile(request, connectionSocket, path);
-                    if (contentBytes == null) {
-                        return new HttpResponse(400, "Bad Request");
-                    }
-                    
-                    contentLength = contentBytes.length;
-
-                    return new HttpResponse(200, "OK", lastModifiedDate, contentType, contentBytes);
-                } else {
-                    contentLength = (int) file.length();
-                    FileInputStream fileIn = new FileInputStream(file);
-                    contentBytes = new byte[contentLength];
-                    fileIn.read(contentBytes);
-
-                    return new HttpResponse(200, "OK", lastModifiedDate, contentType, contentBytes);
-                }
-            case HttpMethod.POST:
-                if (!file.canExecute()) {
-                    System.out.println("[DEBUG] File not executable: " + path);
-                    return new HttpResponse(500, "Internal Server Error");
-                }
-                
-                contentBytes = executeDynamicFile(request, connectionSocket, path, request.body);
-                if (contentBytes == null) {
-                    return new HttpResponse(400, "Bad Request");
-                }
 
-                contentLength = contentBytes.length;
-                return new HttpResponse(201, "Created", lastModifiedDate, contentType, contentBytes);
-            case HttpMethod.DELETE:
-                if (!file.canExecute()) {
-                    System.out.println("[DEBUG] File not executable: " + path);
-                    return new HttpResponse(500, "Internal Server Error");
-                }
-
-                contentBytes = executeDynamicFile(request, connectionSocket, path);
-                if (contentBytes == null) {
-                    return new HttpResponse(400, "Bad Request");
-                }
-
-                contentLength = contentBytes.length;
-                
-                return new HttpResponse(204, "No Content");
-            default:
-                System.out.println("[DEBUG] Unsupported method: " + request.method);
-                return new HttpResponse(501, "Not Implemented");
+        if (!state.responses.isEmpty()) {
+            key.interestOps(withBodyRead(state, SelectionKey.OP_WRITE));
+        } else if (state.awaitingRequest != null) {
+            key.interestOps(withBodyRead(state, 0));
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
         }
+        updateTimeout(key, state);
     }
 
-    private byte[] executeDynamicFile(HttpRequest request, Socket connectionSocket, String... args) throws Exception {
-        ProcessBuilder pb = new ProcessBuilder(args);
-        Map<String, String> environment = pb.environment();
-        environment.put("REQUEST_METHOD", request.method.toString());
-        environment.put("REMOTE_ADDR", connectionSocket.getInetAddress().getHostAddress());
-        environment.put("REMOTE_PORT", Integer.toString(connectionSocket.getPort()));
-        environment.put("SERVER_NAME", Utils.ServerName);
-
-        Process p = pb.start();
-        InputStream is = p.getInputStream();
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        byte[] data = new byte[1024];
-        while ((nRead = is.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
-        }
-        buffer.flush();
+    // Keeps reading a body that is still arriving, unless the script it goes to has fallen behind
+    private static int withBodyRead(RequestState state, int ops) {
+        return state.receiving != null && !state.receiving.isFull() ? ops | SelectionKey.OP_READ : ops;
+    }
 
-        int exitCode = p.waitFor();
+    // Answers a request that couldn't be parsed and closes the connection once everything before it is written
+    private void rejectRequest(SelectionKey key, RequestState state, Exception e) {
+        Log.debug("Failed to parse request: ", e.getMessage());
+        if (e instanceof HttpRequestParser.ParseException) {
+            HttpRequestParser.ParseException parseException = (HttpRequestParser.ParseException) e;
+            state.enqueue(new HttpResponse(parseException.statusCode, parseException.statusMessage), null);
+        } else {
+            state.enqueue(new HttpResponse(400, "Bad Request"), null);
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+        updateTimeout(key, state);
+    }
 
-        return exitCode == 0 ? buffer.toByteArray() : null;
+    // Hands a response (or null to resume a parked stream) back to this loop from another thread
+    private void postResponse(SelectionKey key, HttpResponse response) {
+        this.completions.add(new Completion(key, response));
+        this.selector.wakeup();
     }
 }
\ No newline at end of file
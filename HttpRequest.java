@@ -2,55 +2,107 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 
 
-public class HttpRequest {
+public final class HttpRequest {
     public HttpMethod method;
     public String path;
     public String version;
-    public Map<String, String> headers = new HashMap<String, String>();
-    public String body;
+    public RequestBody body;
     public List<String> acceptTypes;
     public boolean isMobileUserAgent;
     public Date ifModifiedSinceDate;
-    public boolean keepAlive = false;
-    public String[] credentials;
+    public boolean acceptsGzip;
+    public String ifNoneMatch;
+    public String range;
+    public String ifRange;
+    public boolean acceptsDeflate;
+    public boolean keepAlive;
+    public String authorization;
+    private String[] credentials;
     public Map<String, String> queryParams = new HashMap<String, String>();
 
+    // When the request was handed to the handler and the virtual host that served it, for metrics and admission
+    public long startNanos;
+    public String virtualHost;
+
+    // Raw header block and the parser's offsets into it, header values are only decoded when asked for. The buffer is
+    // reused once the connection moves on to its next request, so headers must be read while handling this one.
+    private final ByteBuffer raw;
+    private final int[] headerOffsets;
+    private final int headerCount;
+
     public static List<String> PossibleAcceptTypes = Arrays.asList("text/html", "text/plain", "application/json", "image/jpeg", "image/png", "image/gif", "application/pdf", "application/zip", "application/gzip", "application/x-tar", "application/x-bzip2", "application/x-rar-compressed", "application/x-7z-compressed", "audio/mpeg", "audio/ogg", "audio/wav", "audio/webm", "video/mp4", "video/ogg", "video/webm", "application/octet-stream", "*/*");
 
-    public HttpRequest(ByteBuffer in) throws Exception {
-        String request = new String(in.array());
-        String[] lines = request.split("\r\n");
-        String[] sections = request.split("\r\n\r\n");
-        int count = 0;
-        
+    private static final Pattern MobilePattern = Pattern.compile(String.join("|", "Android", "iPhone", "Windows Phone", "Mobile"), Pattern.CASE_INSENSITIVE);
+
+    public HttpRequest(ByteBuffer raw, HttpRequestParser parser) throws Exception {
+        this.raw = raw;
+        this.headerOffsets = parser.headerOffsets;
+        this.headerCount = parser.headerCount;
+
         // Extract method, path, version from request line
-        String requestLine = lines[count++];
-        String[] requestLineParts = requestLine.split(" ");
-        this.method = HttpMethod.valueOf(requestLineParts[0]);
-        this.path = extractQueryParams(requestLineParts[1]);
-        this.version = requestLineParts[2];
-
-        // Read headers
-        String line;
-        while ((line = lines[count++]) != null) {
-            if (line.isEmpty()) {
-                break;
+        this.method = HttpMethod.valueOf(decode(parser.methodStart, parser.methodEnd));
+        this.path = extractQueryParams(decode(parser.uriStart, parser.uriEnd));
+        this.version = decodeVersion(parser.versionStart, parser.versionEnd);
+
+        processHeaders();
+    }
+
+    // Case-insensitive header lookup, returns null if the header wasn't sent
+    public String getHeader(String name) {
+        for (int i = 0; i < this.headerCount; i++) {
+            int nameStart = this.headerOffsets[4 * i];
+            int nameEnd = this.headerOffsets[4 * i + 1];
+            if (nameMatches(name, nameStart, nameEnd)) {
+                return decode(this.headerOffsets[4 * i + 2], this.headerOffsets[4 * i + 3]);
             }
-            String[] headerParts = line.split(": ");
-            headers.put(headerParts[0], headerParts[1]);
         }
+        return null;
+    }
 
-        processHeaders();
+    public int getHeaderCount() {
+        return this.headerCount;
+    }
+
+    private boolean nameMatches(String name, int start, int end) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int a = this.raw.get(start + i);
+            int b = name.charAt(i);
+            if (a != b && !(Character.isLetter(b) && (a | 0x20) == (b | 0x20))) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public void parseBody(ByteBuffer body) {
-        this.body = new String(body.array());
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = this.raw.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private String decodeVersion(int start, int end) {
+        // Avoid allocating for the two versions every client sends
+        if (end - start == 8 && this.raw.get(start + 5) == '1' && this.raw.get(start + 6) == '.') {
+            byte minor = this.raw.get(start + 7);
+            if (minor == '1' && nameMatches("HTTP/1.1", start, end)) {
+                return "HTTP/1.1";
+            } else if (minor == '0' && nameMatches("HTTP/1.0", start, end)) {
+                return "HTTP/1.0";
+            }
+        }
+        return decode(start, end);
     }
 
     private String extractQueryParams(String line) {
@@ -65,10 +117,11 @@ public class HttpRequest {
 
         return index == -1 ? line : line.substring(0, index);
     }
-    
+
     private void processHeaders() throws Exception {
-        if (headers.containsKey("Accept")) {
-            String[] parts = headers.get("Accept").split(", ");
+        String accept = getHeader("Accept");
+        if (accept != null) {
+            String[] parts = accept.split(", ");
 
             this.acceptTypes = new ArrayList<String>();
 
@@ -82,42 +135,108 @@ public class HttpRequest {
             }
         }
 
-        if (headers.containsKey("User-Agent")) {
-            String[] mobileKeywords = {"Android", "iPhone", "Windows Phone", "Mobile"};
-
-            // Create a regular expression pattern to match mobile keywords.
-            String pattern = String.join("|", mobileKeywords);
-            Pattern mobilePattern = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-
+        String userAgent = getHeader("User-Agent");
+        if (userAgent != null) {
             // Use a Matcher to find a match in the User-Agent string.
-            Matcher matcher = mobilePattern.matcher(headers.get("User-Agent"));
+            Matcher matcher = MobilePattern.matcher(userAgent);
 
             this.isMobileUserAgent = matcher.find();
         }
 
-        if (headers.containsKey("If-Modified-Since")) {
-            this.ifModifiedSinceDate = Utils.parseFormattedDate(headers.get("If-Modified-Since"));
+        // A q of 0 refuses a coding, and a coding named explicitly overrides *. Scanned in place, it's on every request.
+        String acceptEncoding = getHeader("Accept-Encoding");
+        if (acceptEncoding != null) {
+            int gzip = -1, deflate = -1, any = -1;
+            for (int start = 0; start < acceptEncoding.length(); ) {
+                int end = acceptEncoding.indexOf(',', start);
+                end = end < 0 ? acceptEncoding.length() : end;
+                int semicolon = acceptEncoding.indexOf(';', start);
+                int codingEnd = semicolon >= 0 && semicolon < end ? semicolon : end;
+                int accepted = codingEnd < end && isZeroQuality(acceptEncoding.substring(codingEnd + 1, end)) ? 0 : 1;
+
+                int from = start, to = codingEnd;
+                while (from < to && acceptEncoding.charAt(from) == ' ') {
+                    from++;
+                }
+                while (to > from && acceptEncoding.charAt(to - 1) == ' ') {
+                    to--;
+                }
+                if (isCoding(acceptEncoding, from, to, "gzip") || isCoding(acceptEncoding, from, to, "x-gzip")) {
+                    gzip = accepted;
+                } else if (isCoding(acceptEncoding, from, to, "deflate")) {
+                    deflate = accepted;
+                } else if (isCoding(acceptEncoding, from, to, "*")) {
+                    any = accepted;
+                }
+                start = end + 1;
+            }
+            this.acceptsGzip = gzip == 1 || (gzip == -1 && any == 1);
+            this.acceptsDeflate = deflate == 1 || (deflate == -1 && any == 1);
         }
 
-        if (headers.containsKey("Connection")) {
-            if (headers.get("Connection").equals("keep-alive")) {
+        this.ifNoneMatch = getHeader("If-None-Match");
+
+        // Resolved against the file's length when the request is handled
+        this.range = getHeader("Range");
+        this.ifRange = getHeader("If-Range");
+
+        String ifModifiedSince = getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            this.ifModifiedSinceDate = Utils.parseFormattedDate(ifModifiedSince);
+        }
+
+        // HTTP/1.1 connections are persistent unless the client says otherwise, HTTP/1.0 ones only if asked
+        this.keepAlive = this.version.equals("HTTP/1.1");
+        String connection = getHeader("Connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("keep-alive")) {
                 this.keepAlive = true;
-            } else if (headers.get("Connection").equals("close")) {
+            } else if (connection.equalsIgnoreCase("close")) {
                 this.keepAlive = false;
             } else {
                 throw new Exception("Invalid connection type");
             }
         }
 
-        if (headers.containsKey("Authorization")) {
-            String[] parts = headers.get("Authorization").split(" ");
-
-            if (parts[0].equals("Basic")) {
-                String decoded = new String(Base64.getDecoder().decode(parts[1]));
-                this.credentials = decoded.split(":");
-            } else {
+        String authorization = getHeader("Authorization");
+        if (authorization != null) {
+            if (!authorization.startsWith("Basic ")) {
                 throw new Exception("Invalid authorization type");
             }
+            this.authorization = authorization;
+        }
+    }
+
+    private static boolean isCoding(String header, int from, int to, String coding) {
+        return to - from == coding.length() && header.regionMatches(true, from, coding, 0, coding.length());
+    }
+
+    private static boolean isZeroQuality(String parameters) {
+        String quality = parameters.trim();
+        if (!quality.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(quality.substring(2)) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Basic credentials as { user, password }, or null if there are none or they don't decode. Decoded on first use, so
+    // requests whose Authorization value was already verified never pay for it.
+    public String[] getCredentials() {
+        if (this.credentials == null && this.authorization != null) {
+            try {
+                String decoded = new String(Base64.getDecoder().decode(this.authorization.substring(6).trim()), StandardCharsets.UTF_8);
+                int colon = decoded.indexOf(':');
+                if (colon >= 0) {
+                    this.credentials = new String[] { decoded.substring(0, colon), decoded.substring(colon + 1) };
+                }
+            } catch (IllegalArgumentException e) {
+                Log.debug("Invalid authorization credentials");
+            }
         }
+        return this.credentials;
     }
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+import java.nio.*;
+
+
+// Resumable parser for the request line and headers, records offsets into the caller's buffer
+class HttpRequestParser {
+    private static final int RequestLine = 0;
+    private static final int HeaderLineStart = 1;
+    private static final int HeaderName = 2;
+    private static final int HeaderValue = 3;
+    private static final int Done = 4;
+
+    private int state = RequestLine;
+    private int position;
+    private int lineStart;
+    private int nameEnd;
+
+    // Request line offsets
+    public int methodStart;
+    public int methodEnd;
+    public int uriStart;
+    public int uriEnd;
+    public int versionStart;
+    public int versionEnd;
+
+    // Four offsets per header: name start, name end, value start, value end
+    public int[] headerOffsets = new int[4 * 16];
+    public int headerCount;
+
+    // Index of the first byte after the blank line ending the headers
+    public int headerEnd;
+
+    private final int maxHeaderCount;
+
+    public static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final int statusCode;
+        public final String statusMessage;
+
+        public ParseException(int statusCode, String statusMessage, String message) {
+            super(message);
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+        }
+    }
+
+    public HttpRequestParser(int maxHeaderCount) {
+        this.maxHeaderCount = maxHeaderCount;
+    }
+
+    public boolean isDone() {
+        return this.state == Done;
+    }
+
+    // Scans bytes [previous position, in.position()) of a buffer in write mode. Returns true once the headers are complete.
+    public boolean parse(ByteBuffer in) throws ParseException {
+        int limit = in.position();
+        while (this.position < limit && this.state != Done) {
+            switch (this.state) {
+                case RequestLine: {
+                    int lf = skipTo(in, (byte) '\n', this.position, limit);
+                    if (lf == limit) {
+                        this.position = limit;
+                        break;
+                    }
+                    parseRequestLine(in, this.lineStart, lineEnd(in, lf));
+                    this.state = HeaderLineStart;
+                    this.position = lf + 1;
+                    this.lineStart = this.position;
+                    break;
+                }
+                case HeaderLineStart: {
+                    byte b = in.get(this.position);
+                    if (b == '\n') {
+                        // Blank line, headers are done
+                        this.headerEnd = this.position + 1;
+                        this.state = Done;
+                    } else if (b == ' ' || b == '\t') {
+                        throw new ParseException(400, "Bad Request", "Obsolete header line folding");
+                    } else if (b != '\r') {
+                        this.state = HeaderName;
+                    }
+                    this.position += 1;
+                    break;
+                }
+                case HeaderName: {
+                    int colon = this.position;
+                    while (colon < limit) {
+                        byte b = in.get(colon);
+                        if (b == ':') {
+                            break;
+                        } else if (b == '\n' || b == ' ' || b == '\t') {
+                            throw new ParseException(400, "Bad Request", "Malformed header name");
+                        }
+                        colon += 1;
+                    }
+                    if (colon < limit) {
+                        this.nameEnd = colon;
+                        this.state = HeaderValue;
+                        colon += 1;
+                    }
+                    this.position = colon;
+                    break;
+                }
+                case HeaderValue: {
+                    int lf = skipTo(in, (byte) '\n', this.position, limit);
+                    if (lf == limit) {
+                        this.position = limit;
+                        break;
+                    }
+                    addHeader(in, this.lineStart, this.nameEnd, this.nameEnd + 1, lineEnd(in, lf));
+                    this.state = HeaderLineStart;
+                    this.position = lf + 1;
+                    this.lineStart = this.position;
+                    break;
+                }
+            }
+        }
+
+        return this.state == Done;
+    }
+
+    private static int skipTo(ByteBuffer in, byte b, int start, int limit) {
+        int i = start;
+        while (i < limit && in.get(i) != b) {
+            i += 1;
+        }
+        return i;
+    }
+
+    // Index of the end of the line terminated by the LF at lf, tolerating a bare LF
+    private static int lineEnd(ByteBuffer in, int lf) {
+        return lf > 0 && in.get(lf - 1) == '\r' ? lf - 1 : lf;
+    }
+
+    private void parseRequestLine(ByteBuffer in, int start, int end) throws ParseException {
+        int firstSpace = indexOf(in, (byte) ' ', start, end);
+        int secondSpace = firstSpace == -1 ? -1 : indexOf(in, (byte) ' ', firstSpace + 1, end);
+        if (firstSpace <= start || secondSpace <= firstSpace + 1 || secondSpace + 1 >= end) {
+            throw new ParseException(400, "Bad Request", "Malformed request line");
+        }
+
+        this.methodStart = start;
+        this.methodEnd = firstSpace;
+        this.uriStart = firstSpace + 1;
+        this.uriEnd = secondSpace;
+        this.versionStart = secondSpace + 1;
+        this.versionEnd = end;
+    }
+
+    private void addHeader(ByteBuffer in, int nameStart, int nameEnd, int valueStart, int valueEnd) throws ParseException {
+        if (this.headerCount == this.maxHeaderCount) {
+            throw new ParseException(431, "Request Header Fields Too Large", "Too many headers");
+        }
+
+        // Trim optional whitespace around the value
+        while (valueStart < valueEnd && (in.get(valueStart) == ' ' || in.get(valueStart) == '\t')) {
+            valueStart += 1;
+        }
+        while (valueEnd > valueStart && (in.get(valueEnd - 1) == ' ' || in.get(valueEnd - 1) == '\t')) {
+            valueEnd -= 1;
+        }
+
+        if (4 * (this.headerCount + 1) > this.headerOffsets.length) {
+            int[] grown = new int[this.headerOffsets.length * 2];
+            System.arraycopy(this.headerOffsets, 0, grown, 0, this.headerOffsets.length);
+            this.headerOffsets = grown;
+        }
+
+        int i = 4 * this.headerCount;
+        this.headerOffsets[i] = nameStart;
+        this.headerOffsets[i + 1] = nameEnd;
+        this.headerOffsets[i + 2] = valueStart;
+        this.headerOffsets[i + 3] = valueEnd;
+        this.headerCount += 1;
+    }
+
+    private static int indexOf(ByteBuffer in, byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (in.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
\ No newline at end of file
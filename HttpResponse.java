@@ -1,5 +1,8 @@
+import java.io.*;
 import java.util.*;
 import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
 
@@ -10,22 +13,63 @@ public class HttpResponse {
     public Date lastModifiedDate;
     public byte[] contentBytes;
     public String unauthorizedRealm = null;
+    public int retryAfterSeconds = -1;
+    public long contentLength = -1;
 
+    // Byte range support is advertised on whole files, and a 206 or 416 says which part of the file this is
+    public boolean acceptRanges;
+    public String contentRange;
+    public String etag;
+
+    // Coding the body is sent in (null for none), and whether it depended on the client's Accept-Encoding
+    public String contentEncoding;
+    public boolean varyAcceptEncoding;
+
+    // Request this answers (null for parse errors and timeouts) and when it was queued, for metrics
+    public HttpRequest request;
+    public long enqueuedNanos;
+
+    // Headers (encoded on the select loop right before writing), followed by either an in-memory body or a file streamed with transferTo
     public ByteBuffer outputBuffer;
+    public ByteBuffer bodyBuffer;
+    public FileChannel bodyChannel;
+    public ByteBuffer[] bodyBuffers;
+
+    // A file sent from bodyChannel starts at bodyOffset, or for multipart/byteranges is made of file pieces
+    // (partOffsets/partLengths) each preceded by partHeaders[i], with the closing boundary in the last partHeaders
+    public long bodyOffset;
+    public ByteBuffer[] partHeaders;
+    public long[] partOffsets;
+    public long[] partLengths;
+    public OpenFileCache.Entry openFile;
+    public ByteBuffer[] gatherBuffers;
+
+    // Output of a running script, sent chunked (or close-delimited for HTTP/1.0 clients) as it is produced
+    public CgiStream cgiStream;
+    public boolean chunked;
+    public boolean closeConnection;
+    public boolean announceKeepAlive;
+    private ByteBuffer streamBuffer;
+    private boolean streamComplete;
+
+    // Compresses the script's output chunk by chunk when it is sent with a content coding
+    private ContentEncoder streamEncoder;
+    private boolean streamEncoded;
+
+    // Loop pool the header and chunk buffers were borrowed from, they go back when the response is closed
+    private BufferPool pool;
+
+    private static final byte[] LastChunk = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
     public HttpResponse(int statusCode, String statusMessage) {
         this.statusCode = statusCode;
         this.statusMessage = statusMessage;
-
-        this.outputBuffer = toByteBuffer();
     }
 
     public HttpResponse(int statusCode, String statusMessage, String unauthorizedRealm) {
         this.statusCode = statusCode;
         this.statusMessage = statusMessage;
         this.unauthorizedRealm = unauthorizedRealm;
-
-        this.outputBuffer = toByteBuffer();
     }
 
     public HttpResponse(int statusCode, String statusMessage, Date lastModifiedDate, String contentType, byte[] contentBytes) {
@@ -34,8 +78,48 @@ public class HttpResponse {
         this.lastModifiedDate = lastModifiedDate;
         this.contentType = contentType;
         this.contentBytes = contentBytes;
+    }
 
-        this.outputBuffer = toByteBuffer();
+    public HttpResponse(int statusCode, String statusMessage, Date lastModifiedDate, String contentType, ByteBuffer bodyBuffer) {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.lastModifiedDate = lastModifiedDate;
+        this.contentType = contentType;
+        this.bodyBuffer = bodyBuffer;
+        this.contentLength = bodyBuffer.remaining();
+    }
+
+    public HttpResponse(int statusCode, String statusMessage, Date lastModifiedDate, String contentType, FileChannel bodyChannel) throws IOException {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.lastModifiedDate = lastModifiedDate;
+        this.contentType = contentType;
+        this.bodyChannel = bodyChannel;
+        this.contentLength = bodyChannel.size();
+    }
+
+    // Streams a file over the open file cache's shared channel, which is released rather than closed
+    public HttpResponse(int statusCode, String statusMessage, Date lastModifiedDate, String contentType, OpenFileCache.Entry openFile) throws IOException {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.lastModifiedDate = lastModifiedDate;
+        this.contentType = contentType;
+        this.bodyChannel = openFile.acquireChannel();
+        this.openFile = openFile;
+        this.contentLength = this.bodyChannel.size();
+    }
+
+    // Body in several in-memory pieces, sent with one gathering write
+    public HttpResponse(int statusCode, String statusMessage, Date lastModifiedDate, String contentType, ByteBuffer[] bodyBuffers) {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.lastModifiedDate = lastModifiedDate;
+        this.contentType = contentType;
+        this.bodyBuffers = bodyBuffers;
+        this.contentLength = 0;
+        for (ByteBuffer buffer : bodyBuffers) {
+            this.contentLength += buffer.remaining();
+        }
     }
 
     public HttpResponse(int statusCode, String statusMessage, String contentType, byte[] contentBytes) {
@@ -43,41 +127,267 @@ public class HttpResponse {
         this.statusMessage = statusMessage;
         this.contentType = contentType;
         this.contentBytes = contentBytes;
+    }
+
+    public HttpResponse(int statusCode, String statusMessage, int retryAfterSeconds) {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
 
+    public HttpResponse(int statusCode, String statusMessage, String contentType, CgiStream cgiStream, boolean chunked) {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.contentType = contentType;
+        this.cgiStream = cgiStream;
+        this.chunked = chunked;
+
+        // Without chunked encoding the only way to mark the end of the body is to close the connection
+        this.closeConnection = !chunked;
+    }
+
+    public void encode(BufferPool pool) {
+        if (this.outputBuffer != null) {
+            return;
+        }
+
+        this.pool = pool;
         this.outputBuffer = toByteBuffer();
+        if (this.bodyBuffer != null) {
+            this.gatherBuffers = new ByteBuffer[] { this.outputBuffer, this.bodyBuffer };
+        } else if (this.bodyBuffers != null) {
+            this.gatherBuffers = new ByteBuffer[this.bodyBuffers.length + 1];
+            this.gatherBuffers[0] = this.outputBuffer;
+            System.arraycopy(this.bodyBuffers, 0, this.gatherBuffers, 1, this.bodyBuffers.length);
+        }
     }
 
-    private ByteBuffer toByteBuffer() {
-        ByteBuffer buffer = ByteBuffer.allocate(1024 * 16);
+    // Whether headers or an in-memory body are still to be written
+    public boolean hasPendingBuffers() {
+        if (this.gatherBuffers == null) {
+            return this.outputBuffer.hasRemaining();
+        }
+        for (ByteBuffer buffer : this.gatherBuffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // Add headers in string builder
-        StringBuilder sb = new StringBuilder();
-        sb.append("HTTP/1.1 " + this.statusCode + " " + this.statusMessage + "\r\n");
-        sb.append("Date: " + Utils.getFormattedDate(new Date()) + "\r\n");
-        sb.append("Server: Austin's Really Cool HTTP Server\r\n");
-        if (this.lastModifiedDate != null) {
-            sb.append("Last-Modified: " + Utils.getFormattedDate(this.lastModifiedDate) + "\r\n");
+    // Sends up to maxBytes of the file body from the given position in it with transferTo, returns the bytes written
+    public long transferBody(long position, long maxBytes, WritableByteChannel target) throws IOException {
+        if (this.partHeaders == null) {
+            return this.bodyChannel.transferTo(this.bodyOffset + position, Math.min(this.contentLength - position, maxBytes), target);
         }
-        if (this.contentBytes != null) {
-            sb.append("Content-Type: " + this.contentType + "\r\n");
-            sb.append("Content-Length: " + this.contentBytes.length + "\r\n");
+
+        long segmentStart = 0;
+        for (int i = 0; i < this.partHeaders.length; i++) {
+            int headerLength = this.partHeaders[i].limit();
+            if (position < segmentStart + headerLength) {
+                ByteBuffer header = this.partHeaders[i].duplicate();
+                header.position((int) (position - segmentStart));
+                return target.write(header);
+            }
+            segmentStart += headerLength;
+
+            if (i < this.partOffsets.length && position < segmentStart + this.partLengths[i]) {
+                long offset = position - segmentStart;
+                return this.bodyChannel.transferTo(this.partOffsets[i] + offset, Math.min(this.partLengths[i] - offset, maxBytes), target);
+            }
+            segmentStart += i < this.partLengths.length ? this.partLengths[i] : 0;
         }
-        if (this.unauthorizedRealm != null) {
-            sb.append("WWW-Authenticate: Basic realm=" + this.unauthorizedRealm + "\r\n");
+        return 0;
+    }
+
+    public boolean hasStreamingBody() {
+        return this.bodyChannel != null;
+    }
+
+    public boolean hasPendingStream() {
+        return this.cgiStream != null && ((this.streamBuffer != null && this.streamBuffer.hasRemaining()) || !this.streamComplete);
+    }
+
+    // Returns the next piece of the streamed body to write, or null if the script hasn't produced more output yet
+    public ByteBuffer nextStreamBuffer() throws IOException {
+        if (this.streamBuffer != null && this.streamBuffer.hasRemaining()) {
+            return this.streamBuffer;
         }
-        sb.append("\r\n");
 
-        // Add string builder to buffer
-        buffer.put(sb.toString().getBytes(StandardCharsets.UTF_8));
+        this.pool.release(this.streamBuffer);
+        this.streamBuffer = null;
+
+        byte[] chunk = this.cgiStream.poll();
+        if (this.contentEncoding != null) {
+            chunk = encodeStream(chunk);
+        }
+        if (chunk != null) {
+            this.streamBuffer = this.chunked ? encodeChunk(chunk) : ByteBuffer.wrap(chunk);
+        } else if (this.cgiStream.isFinished()) {
+            // Headers are long gone, so a failed script can only be reported by cutting the body short
+            if (this.cgiStream.isFailed()) {
+                throw new IOException("Dynamic file failed mid-stream");
+            }
+            this.streamComplete = true;
+            if (this.chunked) {
+                this.streamBuffer = this.pool.acquire(LastChunk.length);
+                this.streamBuffer.put(LastChunk).flip();
+            }
+        }
+        return this.streamBuffer;
+    }
+
+    // Returns the compressed chunk, the compressed stream's trailer once the script is done, or null for nothing to send
+    private byte[] encodeStream(byte[] chunk) {
+        if (this.streamEncoder == null && !this.streamEncoded) {
+            this.streamEncoder = new ContentEncoder(this.contentEncoding);
+        }
+        if (chunk != null) {
+            return this.streamEncoder.update(chunk);
+        }
+        if (this.streamEncoder != null && this.cgiStream.isFinished() && !this.cgiStream.isFailed()) {
+            byte[] trailer = this.streamEncoder.finish(new byte[0]);
+            this.streamEncoder = null;
+            this.streamEncoded = true;
+            return trailer;
+        }
+        return null;
+    }
+
+    public void close() {
+        if (this.cgiStream != null) {
+            this.cgiStream.cancel();
+        }
+        if (this.streamEncoder != null) {
+            this.streamEncoder.end();
+            this.streamEncoder = null;
+        }
+        if (this.pool != null) {
+            this.pool.release(this.outputBuffer);
+            this.pool.release(this.streamBuffer);
+            this.outputBuffer = null;
+            this.streamBuffer = null;
+            this.pool = null;
+        }
+        if (this.openFile != null) {
+            this.openFile.releaseChannel();
+            this.openFile = null;
+            this.bodyChannel = null;
+        } else if (this.bodyChannel != null) {
+            try {
+                this.bodyChannel.close();
+            } catch (IOException e) {
+                Log.error("Failed to close file channel: ", e.getMessage());
+            }
+            this.bodyChannel = null;
+        }
+    }
 
-        // Append content to buffer
+    private ByteBuffer toByteBuffer() {
         if (this.contentBytes != null) {
-            buffer.put(this.contentBytes);
+            this.contentLength = this.contentBytes.length;
+            this.bodyBuffer = ByteBuffer.wrap(this.contentBytes);
         }
 
-        // Flip buffer
+        // Bodiless errors are copied whole from the pre-encoded ones
+        if (this.contentLength < 0 && this.cgiStream == null && this.lastModifiedDate == null && this.unauthorizedRealm == null && this.contentRange == null && this.etag == null) {
+            byte[] fixed = ResponseHeaders.fixedResponse(this.statusCode, this.statusMessage, this.closeConnection, this.announceKeepAlive, this.retryAfterSeconds);
+            if (fixed != null) {
+                ByteBuffer buffer = this.pool.acquire(fixed.length);
+                buffer.put(fixed).flip();
+                return buffer;
+            }
+        }
+
+        int size = ResponseHeaders.FixedSize + this.statusMessage.length();
+        size += String.valueOf(this.contentType).length();
+        if (this.contentEncoding != null) {
+            size += this.contentEncoding.length();
+        }
+        if (this.unauthorizedRealm != null) {
+            size += this.unauthorizedRealm.length();
+        }
+        if (this.contentRange != null) {
+            size += this.contentRange.length();
+        }
+        if (this.etag != null) {
+            size += this.etag.length();
+        }
+
+        // Headers are written straight into the pooled buffer, the body follows with a gathering write
+        ByteBuffer buffer = this.pool.acquire(size);
+        ResponseHeaders.putStatusLine(buffer, this.statusCode, this.statusMessage);
+        buffer.put(ResponseHeaders.dateHeader());
+        buffer.put(ResponseHeaders.Server);
+        if (this.lastModifiedDate != null) {
+            buffer.put(ResponseHeaders.LastModified);
+            ResponseHeaders.putHttpDate(buffer, this.lastModifiedDate.getTime());
+            buffer.put(ResponseHeaders.Crlf);
+        }
+        if (this.contentEncoding != null) {
+            buffer.put(ResponseHeaders.ContentEncoding);
+            ResponseHeaders.putAscii(buffer, this.contentEncoding);
+            buffer.put(ResponseHeaders.Crlf);
+        }
+        if (this.varyAcceptEncoding) {
+            buffer.put(ResponseHeaders.VaryAcceptEncoding);
+        }
+        if (this.etag != null) {
+            buffer.put(ResponseHeaders.ETag);
+            ResponseHeaders.putAscii(buffer, this.etag);
+            buffer.put(ResponseHeaders.Crlf);
+        }
+        if (this.acceptRanges) {
+            buffer.put(ResponseHeaders.AcceptRangesBytes);
+        }
+        if (this.contentRange != null) {
+            buffer.put(ResponseHeaders.ContentRange);
+            ResponseHeaders.putAscii(buffer, this.contentRange);
+            buffer.put(ResponseHeaders.Crlf);
+        }
+        if (this.contentLength >= 0) {
+            buffer.put(ResponseHeaders.ContentType);
+            ResponseHeaders.putAscii(buffer, String.valueOf(this.contentType));
+            buffer.put(ResponseHeaders.Crlf);
+            buffer.put(ResponseHeaders.ContentLength);
+            ResponseHeaders.putDecimal(buffer, this.contentLength);
+            buffer.put(ResponseHeaders.Crlf);
+        } else if (this.cgiStream != null) {
+            buffer.put(ResponseHeaders.ContentType);
+            ResponseHeaders.putAscii(buffer, String.valueOf(this.contentType));
+            buffer.put(ResponseHeaders.Crlf);
+            if (this.chunked) {
+                buffer.put(ResponseHeaders.TransferEncodingChunked);
+            }
+        } else if (this.statusCode != 204 && this.statusCode != 304) {
+            // Lets keep-alive clients find the end of an empty response
+            buffer.put(ResponseHeaders.ContentLengthZero);
+        }
+        if (this.closeConnection) {
+            buffer.put(ResponseHeaders.ConnectionClose);
+        } else if (this.announceKeepAlive) {
+            buffer.put(ResponseHeaders.ConnectionKeepAlive);
+        }
+        if (this.unauthorizedRealm != null) {
+            buffer.put(ResponseHeaders.WwwAuthenticate);
+            ResponseHeaders.putAscii(buffer, this.unauthorizedRealm);
+            buffer.put(ResponseHeaders.Crlf);
+        }
+        if (this.retryAfterSeconds >= 0) {
+            buffer.put(ResponseHeaders.RetryAfter);
+            ResponseHeaders.putDecimal(buffer, this.retryAfterSeconds);
+            buffer.put(ResponseHeaders.Crlf);
+        }
+        buffer.put(ResponseHeaders.Crlf);
         buffer.flip();
+        return buffer;
+    }
 
+    private ByteBuffer encodeChunk(byte[] chunk) {
+        ByteBuffer buffer = this.pool.acquire(chunk.length + 12);
+        ResponseHeaders.putHex(buffer, chunk.length);
+        buffer.put(ResponseHeaders.Crlf).put(chunk).put(ResponseHeaders.Crlf);
+        buffer.flip();
         return buffer;
     }
 }
\ No newline at end of file
@@ -6,11 +6,28 @@ import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 
 
 public class HttpServer {
     public static Map<String, String> config;
-    public static Map<String, String> virtualHosts;
+    public static volatile RoutingTable routes;
+    public static FileCache fileCache;
+    public static MappedFileCache mappedFileCache;
+    public static HtaccessCache htaccessCache;
+    public static OpenFileCache openFileCache;
+    public static CompressedFileCache compressedFileCache;
+    public static CgiExecutor cgiExecutor;
+    public static Map<String, CgiWorkerPool> cgiWorkerPools;
+    public static Acceptor acceptor;
+    public static HttpDispatch[] dispatchers = new HttpDispatch[0];
+    public static VirtualThreadEngine virtualThreadEngine;
+    public static Engine[] engines;
 
     public static void main(String[] args) {
         // Accept one argument -config <path to config file>
@@ -23,41 +40,82 @@ public class HttpServer {
         try {
             List<Map<String, String>> result = Utils.loadConfiguration(args[1]);
             config = result.get(0);
-            virtualHosts = result.get(1);
+            routes = new RoutingTable(config, result.get(1), 1);
         } catch (Exception e) {
             System.out.println("[ERROR] Failed to load configuration: " + e.getMessage());
         }
         
-        int serverPort = Integer.parseInt(config.get("Listen"));
-        int nSelectLoops = Integer.parseInt(config.get("nSelectLoops"));
-        Thread[] threads = new Thread[nSelectLoops];
+        Utils.LogLevel = config.getOrDefault("LogLevel", Utils.LogLevel);
+        Utils.LogFile = config.getOrDefault("LogFile", Utils.LogFile);
+        Utils.LogMaxSize = Utils.getConfigLong(config, "LogMaxSize", Utils.LogMaxSize);
+        Utils.LogMaxFiles = Utils.getConfigLong(config, "LogMaxFiles", Utils.LogMaxFiles);
+        Utils.LogRingSize = Utils.getConfigLong(config, "LogRingSize", Utils.LogRingSize);
+        Utils.LogFlushInterval = Utils.getConfigLong(config, "LogFlushInterval", Utils.LogFlushInterval);
+        Utils.AccessLog = config.getOrDefault("AccessLog", Utils.AccessLog);
+        Log.start();
 
-        // Create welcome socket
-        ServerSocketChannel listenChannel;
+        Utils.MaxHeaderSize = (int) Utils.getConfigLong(config, "MaxHeaderSize", Utils.MaxHeaderSize);
+        Utils.MaxHeaderCount = (int) Utils.getConfigLong(config, "MaxHeaderCount", Utils.MaxHeaderCount);
+        Utils.MaxPipelineDepth = (int) Utils.getConfigLong(config, "MaxPipelineDepth", Utils.MaxPipelineDepth);
+        Utils.InitialHeaderBufferSize = Math.min(Utils.InitialHeaderBufferSize, Utils.MaxHeaderSize);
+        Utils.TimeoutLength = (int) Utils.getConfigLong(config, "Timeout", Utils.TimeoutLength);
+        Utils.KeepAliveTimeout = (int) Utils.getConfigLong(config, "KeepAliveTimeout", Utils.KeepAliveTimeout);
+        Utils.AdmissionInitialLimit = (int) Utils.getConfigLong(config, "AdmissionInitialLimit", Utils.AdmissionInitialLimit);
+        Utils.AdmissionMinLimit = (int) Utils.getConfigLong(config, "AdmissionMinLimit", Utils.AdmissionMinLimit);
+        Utils.AdmissionMaxLimit = (int) Utils.getConfigLong(config, "AdmissionMaxLimit", Utils.AdmissionMaxLimit);
+        Utils.AdmissionTargetLatency = Utils.getConfigLong(config, "AdmissionTargetLatency", Utils.AdmissionTargetLatency);
+        Utils.AdmissionBackoffPercent = (int) Utils.getConfigLong(config, "AdmissionBackoffPercent", Utils.AdmissionBackoffPercent);
+        Utils.AdmissionWindow = Utils.getConfigLong(config, "AdmissionWindow", Utils.AdmissionWindow);
+        Utils.AdmissionRetryAfter = (int) Utils.getConfigLong(config, "AdmissionRetryAfter", Utils.AdmissionRetryAfter);
+        Utils.BufferPoolMaxFree = Utils.getConfigLong(config, "BufferPoolMaxFree", Utils.BufferPoolMaxFree);
+        fileCache = new FileCache(Utils.getConfigLong(config, "FileCacheSize", Utils.FileCacheSize), Utils.getConfigLong(config, "FileCacheMaxEntrySize", Utils.FileCacheMaxEntrySize));
+        Utils.MaxRanges = (int) Utils.getConfigLong(config, "MaxRanges", Utils.MaxRanges);
+        Utils.MaxRequestBodySize = Utils.getConfigLong(config, "MaxRequestBodySize", Utils.MaxRequestBodySize);
+        Utils.RequestBodyBufferSize = Utils.getConfigLong(config, "RequestBodyBufferSize", Utils.RequestBodyBufferSize);
+        Utils.ETagContentHash = config.getOrDefault("ETagContentHash", "off").equals("on");
+        Utils.Compression = config.getOrDefault("Compression", "on").equals("on");
+        Utils.CompressionLevel = (int) Utils.getConfigLong(config, "CompressionLevel", Utils.CompressionLevel);
+        Utils.CompressMinSize = Utils.getConfigLong(config, "CompressMinSize", Utils.CompressMinSize);
+        compressedFileCache = new CompressedFileCache(Utils.getConfigLong(config, "CompressedCacheSize", Utils.CompressedCacheSize));
+        openFileCache = new OpenFileCache(Utils.getConfigLong(config, "OpenFileCacheValid", Utils.OpenFileCacheValid), (int) Utils.getConfigLong(config, "OpenFileCacheSize", Utils.OpenFileCacheSize), (int) Utils.getConfigLong(config, "OpenFileCacheMaxDescriptors", Utils.OpenFileCacheMaxDescriptors));
+        htaccessCache = new HtaccessCache(Utils.getConfigLong(config, "HtaccessCheckInterval", Utils.HtaccessCheckInterval), (int) Utils.getConfigLong(config, "HtaccessVerifiedMax", Utils.HtaccessVerifiedMax));
+        mappedFileCache = new MappedFileCache(Utils.getConfigLong(config, "MmapCacheSize", Utils.MmapCacheSize), Utils.getConfigLong(config, "MmapMaxFileSize", Utils.MmapMaxFileSize));
+        cgiExecutor = new CgiExecutor((int) Utils.getConfigLong(config, "CgiThreads", Utils.CgiThreads), (int) Utils.getConfigLong(config, "CgiQueueSize", Utils.CgiQueueSize), Utils.getConfigLong(config, "CgiTimeout", Utils.CgiTimeout), Utils.getConfigLong(config, "CgiStreamDelay", Utils.CgiStreamDelay));
         try {
-            listenChannel = ServerSocketChannel.open();
-            ServerSocket listenSocket = listenChannel.socket();
-            InetSocketAddress address = new InetSocketAddress(serverPort);
-            listenSocket.bind(address);
-            listenChannel.configureBlocking(false);
-        } catch (IOException ex) {
-            System.out.println("[ERROR] Could not listen on port " + serverPort);
+            cgiWorkerPools = Utils.loadCgiWorkerPools(config, cgiExecutor);
+        } catch (Exception e) {
+            System.out.println("[ERROR] Failed to start CGI workers: " + e.getMessage());
             return;
         }
 
-        System.out.println("[DEBUG] Server listening on port " + serverPort);
+        int serverPort = Integer.parseInt(config.get("Listen"));
+        int nSelectLoops = Integer.parseInt(config.get("nSelectLoops"));
+        Utils.AcceptMode = config.getOrDefault("AcceptMode", Utils.AcceptMode);
+        Utils.AcceptBalance = config.getOrDefault("AcceptBalance", Utils.AcceptBalance);
+        Utils.AcceptBatch = (int) Utils.getConfigLong(config, "AcceptBatch", Utils.AcceptBatch);
+        Utils.ConnectionEngine = config.getOrDefault("ConnectionEngine", Utils.ConnectionEngine);
 
         try {
-            for (int i = 0; i < nSelectLoops; i++) {
-                threads[i] = new Thread(new HttpDispatch(i + 1, listenChannel, config, virtualHosts));
-                threads[i].start();
+            if (Utils.ConnectionEngine.equals("virtual")) {
+                startVirtualThreadEngine(serverPort);
+            } else {
+                startSelectLoops(serverPort, nSelectLoops);
             }
+        } catch (IOException ex) {
+            System.out.println("[ERROR] Could not listen on port " + serverPort + ": " + ex.getMessage());
+            return;
         } catch (Exception e) {
             System.out.println("[ERROR] Could not start worker threads: " + e.getMessage());
             return;
         }
 
-        System.out.println("[DEBUG] Worker threads started. Enter shutdown command to finish existing requests and stop the server.");
+        System.out.println("[DEBUG] Server listening on port " + serverPort + (virtualThreadEngine != null ? " (virtual threads)" : " (AcceptMode " + Utils.AcceptMode + ")"));
+
+        if (config.getOrDefault("ConfigWatch", "off").equals("on")) {
+            watchConfiguration(args[1]);
+        }
+
+        System.out.println("[DEBUG] Worker threads started. Enter shutdown command to finish existing requests and stop the server, cache to print file cache stats, or reload to re-read virtual hosts from the config file.");
         
         // Monitor thread for shutdown command
         Scanner scanner = new Scanner(System.in);
@@ -66,8 +124,152 @@ public class HttpServer {
             if (input.equals("shutdown")) {
                 System.out.println("[DEBUG] Shutting down server...");
                 HttpDispatch.requestShutdown();
+                if (virtualThreadEngine != null) {
+                    virtualThreadEngine.shutdown();
+                }
+                cgiExecutor.shutdown();
+                for (CgiWorkerPool pool : cgiWorkerPools.values()) {
+                    pool.shutdown();
+                }
                 break;
+            } else if (input.equals("reload")) {
+                reload(args[1]);
+            } else if (input.equals("cache")) {
+                System.out.println("[DEBUG] File cache: " + fileCache.getStats());
+                System.out.println("[DEBUG] Mapped file cache: " + mappedFileCache.getStats());
+                System.out.println("[DEBUG] Open file cache: " + openFileCache.getStats());
+                System.out.println("[DEBUG] Compressed file cache: " + compressedFileCache.getStats());
+                System.out.println("[DEBUG] Htaccess cache: " + htaccessCache.getStats());
+                for (CgiWorkerPool pool : cgiWorkerPools.values()) {
+                    System.out.println("[DEBUG] CGI worker pool " + pool.getStats());
+                }
+                for (int i = 0; i < dispatchers.length; i++) {
+                    System.out.println("[DEBUG] Buffer pool " + (i + 1) + ": " + dispatchers[i].getBufferPoolStats());
+                    System.out.println("[DEBUG] Select loop " + (i + 1) + ": " + dispatchers[i].getAcceptStats());
+                }
+                if (acceptor != null) {
+                    System.out.println("[DEBUG] Acceptor: " + acceptor.getStats());
+                }
+                if (virtualThreadEngine != null) {
+                    System.out.println("[DEBUG] Virtual thread engine: " + virtualThreadEngine.getStats());
+                }
+                System.out.println("[DEBUG] Log: " + Log.getStats());
             }
         }
     }
+    // Opens the listen socket(s) for AcceptMode (acceptor, reuseport or shared) and starts the select loops
+    public static HttpDispatch[] startSelectLoops(int serverPort, int nSelectLoops) throws Exception {
+        String mode = Utils.AcceptMode;
+        if (mode.equals("reuseport")) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    System.out.println("[ERROR] SO_REUSEPORT not supported, falling back to AcceptMode acceptor");
+                    mode = "acceptor";
+                }
+            }
+        }
+
+        dispatchers = new HttpDispatch[nSelectLoops];
+        ServerSocketChannel sharedChannel = mode.equals("reuseport") ? null : openListenChannel(serverPort, false);
+        for (int i = 0; i < nSelectLoops; i++) {
+            if (mode.equals("reuseport")) {
+                ServerSocketChannel listenChannel = openListenChannel(serverPort, true);
+                serverPort = ((InetSocketAddress) listenChannel.getLocalAddress()).getPort();
+                dispatchers[i] = new HttpDispatch(i + 1, listenChannel, true);
+            } else if (mode.equals("shared")) {
+                dispatchers[i] = new HttpDispatch(i + 1, sharedChannel, false);
+            } else {
+                dispatchers[i] = new HttpDispatch(i + 1, null, false);
+            }
+        }
+
+        for (int i = 0; i < nSelectLoops; i++) {
+            new Thread(dispatchers[i]).start();
+        }
+        if (sharedChannel != null && !mode.equals("shared")) {
+            acceptor = new Acceptor(sharedChannel, dispatchers, !Utils.AcceptBalance.equals("roundrobin"));
+            Thread acceptorThread = new Thread(acceptor);
+            acceptorThread.setDaemon(true);
+            acceptorThread.start();
+        }
+        engines = dispatchers;
+        return dispatchers;
+    }
+
+    // Serves connections on a virtual thread each instead of select loops, accepting on a thread of its own
+    public static VirtualThreadEngine startVirtualThreadEngine(int serverPort) throws Exception {
+        virtualThreadEngine = new VirtualThreadEngine(openListenChannel(serverPort, false));
+        engines = new Engine[] { virtualThreadEngine };
+        new Thread(virtualThreadEngine, "virtual-thread-acceptor").start();
+        return virtualThreadEngine;
+    }
+
+    // Re-reads the config file and swaps in its virtual hosts, requests already routed finish on the old table. Other
+    // directives need a restart. A file that fails to load leaves the current table in place.
+    public static synchronized boolean reload(String path) {
+        RoutingTable next;
+        try {
+            List<Map<String, String>> result = Utils.loadConfiguration(path);
+            if (result.get(1).isEmpty()) {
+                throw new Exception("No virtual hosts");
+            }
+            next = new RoutingTable(result.get(0), result.get(1), routes.generation + 1);
+        } catch (Exception e) {
+            System.out.println("[ERROR] Failed to reload configuration, keeping the current one: " + e.getMessage());
+            return false;
+        }
+
+        routes = next;
+        System.out.println("[DEBUG] Reloaded configuration (generation " + next.generation + "): " + (next.virtualHosts.size() - 1) + " virtual hosts");
+        List<String> changed = next.changedDirectives(config);
+        if (!changed.isEmpty()) {
+            System.out.println("[DEBUG] Changed directives take effect on restart: " + String.join(", ", changed));
+        }
+        return true;
+    }
+
+    // Reloads whenever the config file is written (ConfigWatch on), once the writes have settled
+    private static void watchConfiguration(String path) {
+        Path configPath = Paths.get(path).toAbsolutePath();
+        Thread watcher = new Thread(() -> {
+            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                configPath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= configPath.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    if (!changed) {
+                        continue;
+                    }
+
+                    // Editors often save in several writes, reload once for all of them
+                    Thread.sleep(Utils.ConfigWatchDelay);
+                    for (key = watchService.poll(); key != null; key = watchService.poll()) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                    reload(path);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("[ERROR] Failed to watch config file: " + e.getMessage());
+            }
+        }, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static ServerSocketChannel openListenChannel(int serverPort, boolean reusePort) throws IOException {
+        ServerSocketChannel listenChannel = ServerSocketChannel.open();
+        if (reusePort) {
+            listenChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        listenChannel.bind(new InetSocketAddress(serverPort), Utils.AcceptBacklog);
+        listenChannel.configureBlocking(false);
+        return listenChannel;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+// Log-linear histogram (16 sub-buckets per power of two, about 6% error), single writer
+class LatencyHistogram {
+    private static final int SubBucketBits = 4;
+    private static final int SubBuckets = 1 << SubBucketBits;
+
+    private final long[] counts = new long[(64 - SubBucketBits + 1) * SubBuckets];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        this.counts[indexFor(value)] += 1;
+        this.count += 1;
+        this.sum += value;
+        if (value > this.max) {
+            this.max = value;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public long getSum() {
+        return this.sum;
+    }
+
+    public long getMax() {
+        return this.max;
+    }
+
+    // Upper bound of the bucket holding the given quantile (0 to 1), capped at the largest value recorded
+    public long getValueAtQuantile(double quantile) {
+        if (this.count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max((long) Math.ceil(quantile * this.count), 1);
+        long seen = 0;
+        for (int i = 0; i < this.counts.length; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return Math.min(lowestValueAt(i + 1) - 1, this.max);
+            }
+        }
+        return this.max;
+    }
+
+    private static int indexFor(long value) {
+        if (value < SubBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SubBucketBits)) & (SubBuckets - 1);
+        return (exponent - SubBucketBits + 1) * SubBuckets + subBucket;
+    }
+
+    private static long lowestValueAt(int index) {
+        if (index < SubBuckets) {
+            return index;
+        }
+        int exponent = index / SubBuckets + SubBucketBits - 1;
+        if (exponent >= 63) {
+            return Long.MAX_VALUE;
+        }
+        return (long) (SubBuckets + index % SubBuckets) << (exponent - SubBucketBits);
+    }
+}
\ No newline at end of file
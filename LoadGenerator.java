@@ -0,0 +1,410 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+// NIO load generator behind HttpClient load, closed-loop or open-loop with latency measured from when
+// each request was due. Mix lines are {"method", "path", "body", "host", "auth"}.
+class LoadGenerator {
+    private static final Pattern JsonField = Pattern.compile("\"(method|path|body|host|auth)\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private String host = "localhost";
+    private int port = 6789;
+    private String hostHeader = "cicada.cs.yale.edu";
+    private String auth = "username:password";
+    private int connectionCount = 16;
+    private int durationSeconds = 10;
+    private long rps = 0;
+    private int pipelineDepth = 1;
+    private boolean keepAlive = true;
+    private String mixPath = "bench/mix.jsonl";
+
+    private final List<byte[]> mix = new ArrayList<byte[]>();
+    private int nextRequest;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final TreeMap<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+    private long errors;
+    private long protocolErrors;
+
+    // Intended send times of open-loop requests no connection could take yet
+    private final ArrayDeque<Long> backlog = new ArrayDeque<Long>();
+
+    private static class Connection {
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer out = ByteBuffer.allocate(0);
+        ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        ArrayDeque<Long> outstanding = new ArrayDeque<Long>();
+
+        // Response parse state
+        boolean headersDone;
+        int status;
+        long bodyRemaining;
+        boolean chunked;
+        int chunkState;
+        boolean closeAfter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-host": generator.host = value; break;
+                case "-port": generator.port = Integer.parseInt(value); break;
+                case "-vhost": generator.hostHeader = value; break;
+                case "-auth": generator.auth = value; break;
+                case "-c": generator.connectionCount = Integer.parseInt(value); break;
+                case "-d": generator.durationSeconds = Integer.parseInt(value); break;
+                case "-rps": generator.rps = Long.parseLong(value); break;
+                case "-pipeline": generator.pipelineDepth = Integer.parseInt(value); break;
+                case "-keepalive": generator.keepAlive = Boolean.parseBoolean(value); break;
+                case "-mix": generator.mixPath = value; break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        generator.loadMix();
+        generator.run();
+    }
+
+    // Lines without a path (or a missing file) are skipped, an empty mix falls back to GET /
+    private void loadMix() throws IOException {
+        if (Files.exists(Path.of(this.mixPath))) {
+            for (String line : Files.readAllLines(Path.of(this.mixPath))) {
+                String method = "GET", path = null, body = "", hostHeader = this.hostHeader, auth = this.auth;
+                Matcher matcher = JsonField.matcher(line);
+                while (matcher.find()) {
+                    String value = matcher.group(2).replace("\\\"", "\"").replace("\\\\", "\\");
+                    if (matcher.group(1).equals("method")) {
+                        method = value;
+                    } else if (matcher.group(1).equals("path")) {
+                        path = value;
+                    } else if (matcher.group(1).equals("body")) {
+                        body = value;
+                    } else if (matcher.group(1).equals("host")) {
+                        hostHeader = value;
+                    } else {
+                        auth = value;
+                    }
+                }
+                if (path != null) {
+                    this.mix.add(encodeRequest(method, path, body, hostHeader, auth));
+                }
+            }
+        }
+        if (this.mix.isEmpty()) {
+            this.mix.add(encodeRequest("GET", "/", "", this.hostHeader, this.auth));
+        }
+        System.out.println("Request mix: " + this.mix.size() + " request(s)");
+    }
+
+    private byte[] encodeRequest(String method, String path, String body, String hostHeader, String auth) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method + " " + path + " HTTP/1.1\r\n");
+        sb.append("Host: " + hostHeader + "\r\n");
+        sb.append("User-Agent: LoadGenerator/1.0\r\n");
+        if (!auth.isEmpty()) {
+            sb.append("Authorization: Basic " + Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8)) + "\r\n");
+        }
+        if (!this.keepAlive) {
+            sb.append("Connection: close\r\n");
+        }
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        if (bodyBytes.length > 0 || method.equals("POST")) {
+            sb.append("Content-Length: " + bodyBytes.length + "\r\n");
+        }
+        sb.append("\r\n");
+        sb.append(body);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void run() throws Exception {
+        Selector selector = Selector.open();
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < this.connectionCount; i++) {
+            Connection connection = new Connection();
+            connect(selector, connection);
+            connections.add(connection);
+        }
+
+        // Connection: close means one request per connection, so there is nothing to pipeline behind it
+        int depth = this.keepAlive ? this.pipelineDepth : 1;
+        long intervalNanos = this.rps > 0 ? 1_000_000_000L / this.rps : 0;
+        long start = System.nanoTime();
+        long end = start + this.durationSeconds * 1_000_000_000L;
+        long nextDue = start;
+
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+
+            // Queue every open-loop request that has come due, then hand out as many as connections can take
+            if (intervalNanos > 0) {
+                while (nextDue <= now) {
+                    this.backlog.add(nextDue);
+                    nextDue += intervalNanos;
+                }
+            }
+            for (Connection connection : connections) {
+                while (connection.channel != null && connection.outstanding.size() < depth) {
+                    if (intervalNanos > 0) {
+                        if (this.backlog.isEmpty()) {
+                            break;
+                        }
+                        send(connection, this.backlog.poll());
+                    } else {
+                        send(connection, now);
+                    }
+                }
+            }
+
+            long waitMillis = intervalNanos > 0 ? Math.max((nextDue - System.nanoTime()) / 1_000_000, 1) : 100;
+            selector.select(Math.min(waitMillis, 100));
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isConnectable() && connection.channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_READ | (connection.out.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.channel.write(connection.out);
+                        if (!connection.out.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(selector, connection);
+                    }
+                } catch (ProtocolException e) {
+                    this.protocolErrors += 1;
+                    fail(selector, connection);
+                } catch (IOException e) {
+                    fail(selector, connection);
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (Connection connection : connections) {
+            if (connection.channel != null) {
+                connection.channel.close();
+            }
+        }
+        report(seconds);
+    }
+
+    private void connect(Selector selector, Connection connection) throws IOException {
+        connection.channel = SocketChannel.open();
+        connection.channel.configureBlocking(false);
+        connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        connection.channel.connect(new InetSocketAddress(this.host, this.port));
+        connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+        connection.out = ByteBuffer.allocate(0);
+        connection.in.clear();
+        connection.outstanding.clear();
+        connection.headersDone = false;
+        connection.closeAfter = false;
+    }
+
+    private void send(Connection connection, long intendedNanos) {
+        byte[] request = this.mix.get(this.nextRequest);
+        this.nextRequest = (this.nextRequest + 1) % this.mix.size();
+
+        // Append behind whatever is still unsent, pipelined requests go out in one write
+        ByteBuffer out = ByteBuffer.allocate(connection.out.remaining() + request.length);
+        out.put(connection.out).put(request).flip();
+        connection.out = out;
+        connection.outstanding.add(intendedNanos);
+        if (connection.channel.isConnected()) {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read(Selector selector, Connection connection) throws IOException {
+        if (!connection.in.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(connection.in.capacity() * 2);
+            connection.in.flip();
+            grown.put(connection.in);
+            connection.in = grown;
+        }
+
+        int bytesRead = connection.channel.read(connection.in);
+        if (bytesRead == -1) {
+            // A close-delimited body ends here, anything else still outstanding is lost
+            if (connection.headersDone && connection.bodyRemaining < 0 && !connection.chunked) {
+                complete(connection);
+            }
+            this.errors += connection.outstanding.size();
+            reconnect(selector, connection);
+            return;
+        }
+
+        connection.in.flip();
+        while (parseResponse(connection)) {
+            complete(connection);
+            if (connection.closeAfter) {
+                this.errors += connection.outstanding.size();
+                reconnect(selector, connection);
+                return;
+            }
+        }
+        connection.in.compact();
+    }
+
+    // Consumes bytes of the current response from in (read mode), returns true once it is complete
+    private boolean parseResponse(Connection connection) throws ProtocolException {
+        ByteBuffer in = connection.in;
+        if (!connection.headersDone) {
+            int end = indexOf(in, "\r\n\r\n");
+            if (end == -1) {
+                return false;
+            }
+            byte[] headerBytes = new byte[end - in.position()];
+            in.get(headerBytes);
+            in.position(end + 4);
+
+            String[] lines = new String(headerBytes, StandardCharsets.ISO_8859_1).split("\r\n");
+            if (!lines[0].startsWith("HTTP/") || lines[0].length() < 12) {
+                throw new ProtocolException("Malformed status line: " + lines[0]);
+            }
+            connection.status = (int) parseNumber(lines[0].substring(9, 12), 10);
+            connection.bodyRemaining = connection.status == 204 || connection.status == 304 ? 0 : -1;
+            connection.chunked = false;
+            connection.chunkState = 0;
+            connection.closeAfter = !this.keepAlive;
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i].toLowerCase(Locale.ROOT);
+                if (line.startsWith("content-length:")) {
+                    connection.bodyRemaining = parseNumber(line.substring(15).trim(), 10);
+                } else if (line.startsWith("transfer-encoding:") && line.contains("chunked")) {
+                    connection.chunked = true;
+                } else if (line.startsWith("connection:") && line.contains("close")) {
+                    connection.closeAfter = true;
+                }
+            }
+            connection.headersDone = true;
+        }
+
+        if (connection.chunked) {
+            return skipChunks(connection);
+        } else if (connection.bodyRemaining >= 0) {
+            int skip = (int) Math.min(in.remaining(), connection.bodyRemaining);
+            in.position(in.position() + skip);
+            connection.bodyRemaining -= skip;
+            return connection.bodyRemaining == 0;
+        } else {
+            // Body runs until the server closes
+            in.position(in.limit());
+            return false;
+        }
+    }
+
+    // Chunk states: 0 size line, 1 data, 2 CRLF after data, 3 final CRLF after the last chunk
+    private boolean skipChunks(Connection connection) throws ProtocolException {
+        ByteBuffer in = connection.in;
+        while (true) {
+            if (connection.chunkState == 0 || connection.chunkState == 3) {
+                int lineEnd = indexOf(in, "\r\n");
+                if (lineEnd == -1) {
+                    return false;
+                }
+                byte[] line = new byte[lineEnd - in.position()];
+                in.get(line);
+                in.position(lineEnd + 2);
+                if (connection.chunkState == 3) {
+                    if (line.length == 0) {
+                        return true;
+                    }
+                    continue;
+                }
+                long size = parseNumber(new String(line, StandardCharsets.ISO_8859_1).split(";")[0].trim(), 16);
+                connection.bodyRemaining = size;
+                connection.chunkState = size == 0 ? 3 : 1;
+            } else if (connection.chunkState == 1) {
+                int skip = (int) Math.min(in.remaining(), connection.bodyRemaining);
+                in.position(in.position() + skip);
+                connection.bodyRemaining -= skip;
+                if (connection.bodyRemaining > 0) {
+                    return false;
+                }
+                connection.chunkState = 2;
+            } else {
+                if (in.remaining() < 2) {
+                    return false;
+                }
+                in.position(in.position() + 2);
+                connection.chunkState = 0;
+            }
+        }
+    }
+
+    // Status codes, lengths and chunk sizes the server got wrong count as protocol errors rather than ending the run
+    private static long parseNumber(String value, int radix) throws ProtocolException {
+        try {
+            return Long.parseLong(value, radix);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Malformed number in response: " + value);
+        }
+    }
+
+    private void complete(Connection connection) {
+        Long intendedNanos = connection.outstanding.poll();
+        if (intendedNanos != null) {
+            this.latencies.record(System.nanoTime() - intendedNanos);
+        }
+        this.statusCounts.merge(connection.status, 1L, Long::sum);
+        connection.headersDone = false;
+    }
+
+    private void fail(Selector selector, Connection connection) {
+        this.errors += Math.max(connection.outstanding.size(), 1);
+        try {
+            reconnect(selector, connection);
+        } catch (IOException e) {
+            connection.channel = null;
+        }
+    }
+
+    private void reconnect(Selector selector, Connection connection) throws IOException {
+        connection.key.cancel();
+        connection.channel.close();
+        connect(selector, connection);
+    }
+
+    private static int indexOf(ByteBuffer in, String pattern) {
+        outer:
+        for (int i = in.position(); i <= in.limit() - pattern.length(); i++) {
+            for (int j = 0; j < pattern.length(); j++) {
+                if (in.get(i + j) != pattern.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void report(double seconds) {
+        long completed = this.latencies.getCount();
+        System.out.printf("%d connections, %s, pipeline %d, keep-alive %s, %.1f s%n", this.connectionCount,
+                this.rps > 0 ? "open-loop " + this.rps + " rps" : "closed-loop", this.pipelineDepth, this.keepAlive, seconds);
+        System.out.printf("Throughput: %.0f responses/s (%d responses, %d errors, %d protocol errors)%n", completed / seconds, completed,
+                this.errors, this.protocolErrors);
+        for (Map.Entry<Integer, Long> entry : this.statusCounts.entrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+        System.out.printf("Latency (ms): p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n", this.latencies.getValueAtQuantile(0.5) / 1e6,
+                this.latencies.getValueAtQuantile(0.99) / 1e6, this.latencies.getValueAtQuantile(0.999) / 1e6, this.latencies.getMax() / 1e6);
+    }
+}
\ No newline at end of file
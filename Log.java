@@ -0,0 +1,369 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+// Asynchronous log: callers fill ring buffer records (one ring per select loop), a writer thread formats
+// and writes them to LogFile or stdout, rotating past LogMaxSize
+class Log {
+    public static final int Error = 0;
+    public static final int Info = 1;
+    public static final int Debug = 2;
+    private static final int Access = 3;
+    private static final String[] Prefixes = { "[ERROR] ", "[INFO] ", "[DEBUG] " };
+
+    private static volatile boolean started;
+    private static int level = Debug;
+    private static String accessFormat = "off";
+
+    private static final ThreadLocal<Ring> LoopRing = new ThreadLocal<Ring>();
+    private static final List<Ring> Rings = new CopyOnWriteArrayList<Ring>();
+    private static Ring sharedRing;
+    // Not synchronized, a virtual thread blocked on a monitor pins its carrier
+    private static final ReentrantLock SharedRingLock = new ReentrantLock();
+
+    // Guarded by Log.class, used only by whoever is draining
+    private static FileChannel channel;
+    private static Path file;
+    private static long fileSize;
+    private static final StringBuilder batch = new StringBuilder();
+    private static final SimpleDateFormat ClfDate = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+    private static final SimpleDateFormat IsoDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    private static long reportedDrops;
+    private static long written;
+    private static long rotations;
+
+    private static class Record {
+        int kind;
+        long millis;
+        String message;
+        Object detail;
+
+        // Access records
+        InetAddress remote;
+        String host;
+        HttpMethod method;
+        String path;
+        String version;
+        int status;
+        long bytes;
+        long durationNanos;
+    }
+
+    // Single producer ring, slots are reused so logging allocates nothing
+    private static class Ring {
+        private final Record[] records;
+        private final int mask;
+        private volatile long head;
+        private volatile long tail;
+        private volatile long dropped;
+
+        Ring(int size) {
+            int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+            this.records = new Record[capacity];
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                this.records[i] = new Record();
+            }
+        }
+
+        // Slot to fill in and publish, or null if the ring is full
+        Record claim() {
+            long head = this.head;
+            if (head - this.tail >= this.records.length) {
+                this.dropped = this.dropped + 1;
+                return null;
+            }
+            Record record = this.records[(int) head & this.mask];
+            record.millis = System.currentTimeMillis();
+            return record;
+        }
+
+        void publish() {
+            this.head = this.head + 1;
+        }
+    }
+
+    // Reads the log directives from Utils and starts the writer thread
+    public static synchronized void start() {
+        level = Utils.LogLevel.equals("error") ? Error : Utils.LogLevel.equals("info") ? Info : Debug;
+        accessFormat = Utils.AccessLog;
+        ClfDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        IsoDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            if (Utils.LogFile != null) {
+                file = Paths.get(Utils.LogFile).toAbsolutePath();
+                openFile();
+            }
+        } catch (IOException e) {
+            System.out.println("[ERROR] Failed to open log file, logging to stdout: " + e.getMessage());
+            file = null;
+        }
+        if (channel == null) {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        sharedRing = new Ring((int) Utils.LogRingSize);
+        Rings.add(sharedRing);
+
+        Thread writer = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Utils.LogFlushInterval));
+                flush();
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+        started = true;
+    }
+
+    // Gives the calling select loop a ring of its own, called once when the loop starts
+    public static void attach() {
+        if (!started) {
+            return;
+        }
+        Ring ring = new Ring((int) Utils.LogRingSize);
+        Rings.add(ring);
+        LoopRing.set(ring);
+    }
+
+    public static void error(String message) {
+        log(Error, message, null);
+    }
+
+    // detail is appended to message by the writer, so callers don't build the line themselves
+    public static void error(String message, Object detail) {
+        log(Error, message, detail);
+    }
+
+    public static void info(String message) {
+        log(Info, message, null);
+    }
+
+    public static void info(String message, Object detail) {
+        log(Info, message, detail);
+    }
+
+    public static void debug(String message) {
+        log(Debug, message, null);
+    }
+
+    public static void debug(String message, Object detail) {
+        log(Debug, message, detail);
+    }
+
+    private static void log(int kind, String message, Object detail) {
+        if (kind > level) {
+            return;
+        }
+        if (!started) {
+            System.out.println(Prefixes[kind] + message + (detail == null ? "" : detail));
+            return;
+        }
+
+        Ring ring = LoopRing.get();
+        if (ring == null) {
+            SharedRingLock.lock();
+            try {
+                append(sharedRing, kind, message, detail);
+            } finally {
+                SharedRingLock.unlock();
+            }
+        } else {
+            append(ring, kind, message, detail);
+        }
+    }
+
+    private static void append(Ring ring, int kind, String message, Object detail) {
+        Record record = ring.claim();
+        if (record != null) {
+            record.kind = kind;
+            record.message = message;
+            record.detail = detail;
+            ring.publish();
+        }
+    }
+
+    // One line per response written, if AccessLog is on. request is null for parse errors and timeouts.
+    public static void access(HttpResponse response, HttpRequest request, InetAddress remote, long durationNanos) {
+        if (!started || accessFormat.equals("off")) {
+            return;
+        }
+
+        Ring ring = LoopRing.get();
+        if (ring == null) {
+            SharedRingLock.lock();
+            try {
+                appendAccess(sharedRing, response, request, remote, durationNanos);
+            } finally {
+                SharedRingLock.unlock();
+            }
+        } else {
+            appendAccess(ring, response, request, remote, durationNanos);
+        }
+    }
+
+    private static void appendAccess(Ring ring, HttpResponse response, HttpRequest request, InetAddress remote, long durationNanos) {
+        Record record = ring.claim();
+        if (record == null) {
+            return;
+        }
+        record.kind = Access;
+        record.remote = remote;
+        record.status = response.statusCode;
+        record.bytes = response.contentLength;
+        record.durationNanos = durationNanos;
+        record.host = request == null ? null : request.virtualHost;
+        record.method = request == null ? null : request.method;
+        record.path = request == null ? null : request.path;
+        record.version = request == null ? null : request.version;
+        ring.publish();
+    }
+
+    // Formats and writes everything logged so far
+    public static synchronized void flush() {
+        if (!started) {
+            return;
+        }
+
+        long dropped = 0;
+        for (Ring ring : Rings) {
+            long tail = ring.tail;
+            long head = ring.head;
+            for (; tail < head; tail++) {
+                Record record = ring.records[(int) tail & ring.mask];
+                format(record);
+                record.message = null;
+                record.detail = null;
+                record.remote = null;
+                record.host = null;
+                record.path = null;
+                ring.tail = tail + 1;
+                if (batch.length() >= 64 * 1024) {
+                    writeBatch();
+                }
+            }
+            dropped += ring.dropped;
+        }
+
+        if (dropped > reportedDrops) {
+            batch.append(Prefixes[Error]).append("Dropped ").append(dropped - reportedDrops).append(" log records, the log writer fell behind\n");
+            reportedDrops = dropped;
+        }
+        writeBatch();
+    }
+
+    private static void format(Record record) {
+        if (record.kind != Access) {
+            batch.append(Prefixes[record.kind]).append(record.message);
+            if (record.detail != null) {
+                batch.append(record.detail);
+            }
+            batch.append('\n');
+        } else if (accessFormat.equals("json")) {
+            batch.append("{\"time\": \"").append(IsoDate.format(new Date(record.millis)))
+                    .append("\", \"remote\": \"").append(record.remote == null ? "" : record.remote.getHostAddress()).append("\", \"host\": ");
+            appendJsonString(record.host);
+            batch.append(", \"method\": ");
+            appendJsonString(record.method == null ? null : record.method.toString());
+            batch.append(", \"path\": ");
+            appendJsonString(record.path);
+            batch.append(", \"status\": ").append(record.status).append(", \"bytes\": ").append(Math.max(record.bytes, 0))
+                    .append(", \"micros\": ").append(record.durationNanos / 1000).append("}\n");
+        } else {
+            // Common Log Format
+            batch.append(record.remote == null ? "-" : record.remote.getHostAddress()).append(" - - [").append(ClfDate.format(new Date(record.millis))).append("] \"");
+            if (record.method != null) {
+                batch.append(record.method).append(' ').append(record.path).append(' ').append(record.version);
+            } else {
+                batch.append('-');
+            }
+            batch.append("\" ").append(record.status).append(' ');
+            if (record.bytes >= 0) {
+                batch.append(record.bytes);
+            } else {
+                batch.append('-');
+            }
+            batch.append('\n');
+        }
+    }
+
+    private static void appendJsonString(String value) {
+        if (value == null) {
+            batch.append("null");
+            return;
+        }
+        batch.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                batch.append('\\').append(c);
+            } else if (c < 0x20) {
+                batch.append(String.format("\\u%04x", (int) c));
+            } else {
+                batch.append(c);
+            }
+        }
+        batch.append('"');
+    }
+
+    private static void writeBatch() {
+        if (batch.length() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        batch.setLength(0);
+        try {
+            if (file != null && fileSize > 0 && fileSize + bytes.remaining() > Utils.LogMaxSize) {
+                rotate();
+            }
+            while (bytes.hasRemaining()) {
+                fileSize += channel.write(bytes);
+            }
+            written += 1;
+        } catch (IOException e) {
+            System.out.println("[ERROR] Failed to write log: " + e.getMessage());
+        }
+    }
+
+    // LogFile becomes LogFile.1, the oldest beyond LogMaxFiles is deleted
+    private static void rotate() throws IOException {
+        channel.close();
+        for (long i = Utils.LogMaxFiles; i >= 1; i--) {
+            Path older = Paths.get(file + "." + i);
+            Path newer = i == 1 ? file : Paths.get(file + "." + (i - 1));
+            if (Files.exists(newer)) {
+                Files.move(newer, older, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (Utils.LogMaxFiles < 1) {
+            Files.deleteIfExists(file);
+        }
+        rotations += 1;
+        openFile();
+    }
+
+    private static void openFile() throws IOException {
+        Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+
+    public static synchronized String getStats() {
+        long dropped = 0;
+        for (Ring ring : Rings) {
+            dropped += ring.dropped;
+        }
+        return "rings=" + Rings.size() + ", writes=" + written + ", dropped=" + dropped + ", rotations=" + rotations
+                + ", file=" + (file == null ? "stdout" : file.toString());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+// Shared LRU table of memory-mapped files, each response gets its own duplicate of the mapping
+class MappedFileCache {
+    private final long capacityBytes;
+    private final long maxFileBytes;
+    private long currentBytes;
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<String, Mapping>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Mapping {
+        final long lastModified;
+        final long length;
+        final MappedByteBuffer buffer;
+
+        Mapping(long lastModified, long length, MappedByteBuffer buffer) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.buffer = buffer;
+        }
+    }
+
+    public MappedFileCache(long capacityBytes, long maxFileBytes) {
+        this.capacityBytes = capacityBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, capacityBytes);
+    }
+
+    public boolean isMappable(long length) {
+        return length > 0 && length <= this.maxFileBytes;
+    }
+
+    // Returns a private read-only view of the mapped file, or null if it can't be mapped
+    public ByteBuffer get(File file) throws IOException {
+        return get(file, file.lastModified(), file.length());
+    }
+
+    // Same, with lastModified and length already known to the caller
+    public ByteBuffer get(File file, long lastModified, long length) throws IOException {
+        String key = file.getPath();
+        if (!isMappable(length)) {
+            return null;
+        }
+
+        synchronized (this) {
+            Mapping mapping = this.mappings.get(key);
+            if (mapping != null && mapping.lastModified == lastModified && mapping.length == length) {
+                this.hits.incrementAndGet();
+                return mapping.buffer.duplicate();
+            }
+        }
+        this.misses.incrementAndGet();
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != length) {
+                // File changed under us, let the caller fall back to streaming it
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+
+        synchronized (this) {
+            Mapping previous = this.mappings.put(key, new Mapping(lastModified, length, buffer));
+            if (previous != null) {
+                this.currentBytes -= previous.length;
+            }
+            this.currentBytes += length;
+
+            // Drop least recently used mappings until we are back under budget
+            Iterator<Mapping> iterator = this.mappings.values().iterator();
+            while (this.currentBytes > this.capacityBytes && iterator.hasNext()) {
+                Mapping eldest = iterator.next();
+                iterator.remove();
+                this.currentBytes -= eldest.length;
+            }
+        }
+
+        return buffer.duplicate();
+    }
+
+    public synchronized String getStats() {
+        return "mappings=" + this.mappings.size() + ", bytes=" + this.currentBytes + "/" + this.capacityBytes
+                + ", hits=" + this.hits.get() + ", misses=" + this.misses.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// Request counters and phase latency histograms for one engine, merged by /server-status
+class Metrics {
+    private static final double[] Quantiles = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] Phases = { "parse", "handle", "write" };
+
+    private final long[] statusCounts = new long[600];
+    private final long[] methodCounts = new long[HttpMethod.values().length];
+    private final ConcurrentHashMap<String, long[]> virtualHostCounts = new ConcurrentHashMap<String, long[]>();
+    private long bytesIn;
+    private long bytesOut;
+
+    // Reading and parsing a request, handling it (including time waiting on a CGI worker), and writing its response
+    public final LatencyHistogram parse = new LatencyHistogram();
+    public final LatencyHistogram handle = new LatencyHistogram();
+    public final LatencyHistogram write = new LatencyHistogram();
+
+    public void recordResponse(int statusCode, HttpRequest request) {
+        this.statusCounts[statusCode < 0 || statusCode >= this.statusCounts.length ? 0 : statusCode] += 1;
+        if (request == null) {
+            return;
+        }
+
+        this.methodCounts[request.method.ordinal()] += 1;
+        if (request.virtualHost != null) {
+            long[] count = this.virtualHostCounts.get(request.virtualHost);
+            if (count == null) {
+                count = new long[1];
+                this.virtualHostCounts.put(request.virtualHost, count);
+            }
+            count[0] += 1;
+        }
+    }
+
+    public void addBytesIn(long bytes) {
+        this.bytesIn += bytes;
+    }
+
+    public void addBytesOut(long bytes) {
+        this.bytesOut += bytes;
+    }
+
+    // Sums every loop's metrics into a new instance
+    private static Metrics merge(Engine[] loops) {
+        Metrics total = new Metrics();
+        for (Engine loop : loops) {
+            Metrics metrics = loop.getMetrics();
+            for (int i = 0; i < total.statusCounts.length; i++) {
+                total.statusCounts[i] += metrics.statusCounts[i];
+            }
+            for (int i = 0; i < total.methodCounts.length; i++) {
+                total.methodCounts[i] += metrics.methodCounts[i];
+            }
+            for (Map.Entry<String, long[]> entry : metrics.virtualHostCounts.entrySet()) {
+                total.virtualHostCounts.computeIfAbsent(entry.getKey(), k -> new long[1])[0] += entry.getValue()[0];
+            }
+            total.bytesIn += metrics.bytesIn;
+            total.bytesOut += metrics.bytesOut;
+            total.parse.add(metrics.parse);
+            total.handle.add(metrics.handle);
+            total.write.add(metrics.write);
+        }
+        return total;
+    }
+
+    public static String toPrometheus(Engine[] loops) {
+        Metrics total = merge(loops);
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# TYPE http_responses_total counter\n");
+        for (int i = 0; i < total.statusCounts.length; i++) {
+            if (total.statusCounts[i] > 0) {
+                sb.append("http_responses_total{code=\"" + i + "\"} " + total.statusCounts[i] + "\n");
+            }
+        }
+        sb.append("# TYPE http_requests_total counter\n");
+        for (HttpMethod method : HttpMethod.values()) {
+            sb.append("http_requests_total{method=\"" + method + "\"} " + total.methodCounts[method.ordinal()] + "\n");
+        }
+        sb.append("# TYPE http_virtual_host_requests_total counter\n");
+        for (Map.Entry<String, long[]> entry : new TreeMap<String, long[]>(total.virtualHostCounts).entrySet()) {
+            sb.append("http_virtual_host_requests_total{host=\"" + entry.getKey() + "\"} " + entry.getValue()[0] + "\n");
+        }
+        sb.append("# TYPE http_received_bytes_total counter\n");
+        sb.append("http_received_bytes_total " + total.bytesIn + "\n");
+        sb.append("# TYPE http_sent_bytes_total counter\n");
+        sb.append("http_sent_bytes_total " + total.bytesOut + "\n");
+        sb.append("# TYPE http_active_connections gauge\n");
+        for (int i = 0; i < loops.length; i++) {
+            sb.append("http_active_connections{loop=\"" + (i + 1) + "\"} " + loops[i].getConnectionCount() + "\n");
+        }
+
+        LatencyHistogram[] histograms = { total.parse, total.handle, total.write };
+        sb.append("# TYPE http_phase_duration_seconds summary\n");
+        for (int p = 0; p < Phases.length; p++) {
+            for (double quantile : Quantiles) {
+                sb.append("http_phase_duration_seconds{phase=\"" + Phases[p] + "\",quantile=\"" + quantile + "\"} " + histograms[p].getValueAtQuantile(quantile) / 1e9 + "\n");
+            }
+            sb.append("http_phase_duration_seconds_sum{phase=\"" + Phases[p] + "\"} " + histograms[p].getSum() / 1e9 + "\n");
+            sb.append("http_phase_duration_seconds_count{phase=\"" + Phases[p] + "\"} " + histograms[p].getCount() + "\n");
+        }
+        return sb.toString();
+    }
+
+    public static String toJson(Engine[] loops) {
+        Metrics total = merge(loops);
+        StringBuilder sb = new StringBuilder("{\"responses\": {");
+
+        String separator = "";
+        for (int i = 0; i < total.statusCounts.length; i++) {
+            if (total.statusCounts[i] > 0) {
+                sb.append(separator + "\"" + i + "\": " + total.statusCounts[i]);
+                separator = ", ";
+            }
+        }
+        sb.append("}, \"requests\": {");
+        separator = "";
+        for (HttpMethod method : HttpMethod.values()) {
+            sb.append(separator + "\"" + method + "\": " + total.methodCounts[method.ordinal()]);
+            separator = ", ";
+        }
+        sb.append("}, \"virtualHosts\": {");
+        separator = "";
+        for (Map.Entry<String, long[]> entry : new TreeMap<String, long[]>(total.virtualHostCounts).entrySet()) {
+            sb.append(separator + "\"" + entry.getKey() + "\": " + entry.getValue()[0]);
+            separator = ", ";
+        }
+        sb.append("}, \"bytesIn\": " + total.bytesIn + ", \"bytesOut\": " + total.bytesOut + ", \"activeConnections\": [");
+        for (int i = 0; i < loops.length; i++) {
+            sb.append((i == 0 ? "" : ", ") + loops[i].getConnectionCount());
+        }
+
+        // Latencies in microseconds
+        LatencyHistogram[] histograms = { total.parse, total.handle, total.write };
+        sb.append("], \"latencyMicros\": {");
+        for (int p = 0; p < Phases.length; p++) {
+            LatencyHistogram histogram = histograms[p];
+            sb.append((p == 0 ? "" : ", ") + "\"" + Phases[p] + "\": {\"count\": " + histogram.getCount());
+            for (double quantile : Quantiles) {
+                sb.append(", \"p" + Double.toString(quantile * 100).replace(".0", "") + "\": " + histogram.getValueAtQuantile(quantile) / 1000);
+            }
+            sb.append(", \"max\": " + histogram.getMax() / 1000 + "}");
+        }
+        sb.append("}}\n");
+        return sb.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+
+// Shared cache of resolved paths like nginx's open_file_cache, trusted for OpenFileCacheValid ms,
+// large files keep a FileChannel open that responses share
+class OpenFileCache {
+    private final long validMillis;
+    private final int maxEntries;
+    private final int maxDescriptors;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> descriptors = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    class Entry {
+        public final String path;
+        public final boolean exists;
+        public final boolean isDirectory;
+        public final boolean executable;
+        public final String contentType;
+        public final long lastModified;
+        public final long length;
+        private volatile long validUntil;
+
+        // Entity tag from the file's identity (inode where the platform has one), lastModified and length, or from a
+        // hash of its contents if ETagContentHash is on, computed on first use
+        private final String metadataTag;
+        private volatile String contentTag;
+
+        // Guarded by the cache
+        private FileChannel channel;
+        private int references;
+        private boolean retired;
+
+        Entry(String path, boolean exists, boolean isDirectory, boolean executable, String contentType, long lastModified, long length, long fileKeyHash, long validUntil) {
+            this.path = path;
+            this.exists = exists;
+            this.isDirectory = isDirectory;
+            this.executable = executable;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.validUntil = validUntil;
+            this.metadataTag = exists ? "\"" + Long.toHexString(fileKeyHash) + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"" : null;
+        }
+
+        // Strong entity tag of the file as is, or of its compressed variant in the given coding
+        public String etag(String encoding) throws IOException {
+            String etag = this.metadataTag;
+            if (Utils.ETagContentHash && this.length <= Utils.FileCacheMaxEntrySize) {
+                if (this.contentTag == null) {
+                    this.contentTag = hashContents(this.path);
+                }
+                etag = this.contentTag;
+            }
+            return encoding == null ? etag : etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+
+        public boolean isFile() {
+            return this.exists && !this.isDirectory;
+        }
+
+        // Shared channel for this file, every acquire must be matched by a release
+        public FileChannel acquireChannel() throws IOException {
+            return OpenFileCache.this.acquire(this);
+        }
+
+        public void releaseChannel() {
+            OpenFileCache.this.release(this);
+        }
+
+        private boolean sameFile(Entry other) {
+            return this.exists == other.exists && this.isDirectory == other.isDirectory && this.executable == other.executable
+                    && this.lastModified == other.lastModified && this.length == other.length;
+        }
+    }
+
+    public OpenFileCache(long validMillis, int maxEntries, int maxDescriptors) {
+        this.validMillis = validMillis;
+        this.maxEntries = maxEntries;
+        this.maxDescriptors = maxDescriptors;
+    }
+
+    public Entry get(String path) throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = this.entries.get(path);
+            if (entry != null && now < entry.validUntil) {
+                this.hits.incrementAndGet();
+                return entry;
+            }
+        }
+        this.misses.incrementAndGet();
+
+        // Look at the disk outside the lock so a slow one doesn't stall other loops
+        Entry fresh = load(path, now + this.validMillis);
+
+        synchronized (this) {
+            Entry previous = this.entries.get(path);
+            if (previous != null && previous.sameFile(fresh)) {
+                // Unchanged, keep the entry and its open channel
+                previous.validUntil = fresh.validUntil;
+                return previous;
+            }
+
+            this.entries.put(path, fresh);
+            if (previous != null) {
+                retire(previous);
+            }
+            Iterator<Entry> iterator = this.entries.values().iterator();
+            while (this.entries.size() > this.maxEntries && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                retire(eldest);
+            }
+        }
+        return fresh;
+    }
+
+    private Entry load(String path, long validUntil) throws IOException {
+        Path filePath = Path.of(path);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return new Entry(path, false, false, false, null, 0, 0, 0, validUntil);
+        }
+
+        boolean isDirectory = attributes.isDirectory();
+        boolean executable = !isDirectory && Files.isExecutable(filePath);
+        String contentType = isDirectory ? null : executable ? "text/plain" : Files.probeContentType(filePath);
+        Object fileKey = attributes.fileKey();
+        long fileKeyHash = fileKey == null ? 0 : fileKey.hashCode() & 0xffffffffL;
+        return new Entry(path, true, isDirectory, executable, contentType, attributes.lastModifiedTime().toMillis(), attributes.size(), fileKeyHash, validUntil);
+    }
+
+    // First 128 bits of the SHA-256 of the file, read in pieces so it is never all in memory
+    private static String hashContents(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) > 0) {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 16)) + "\"";
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private synchronized FileChannel acquire(Entry entry) throws IOException {
+        if (entry.channel == null) {
+            entry.channel = FileChannel.open(Path.of(entry.path), StandardOpenOption.READ);
+            if (entry.retired) {
+                // Replaced while the caller was using it, the channel is closed on release
+                entry.references += 1;
+                return entry.channel;
+            }
+
+            this.descriptors.put(entry.path, entry);
+            Iterator<Entry> iterator = this.descriptors.values().iterator();
+            while (this.descriptors.size() > this.maxDescriptors && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                closeChannel(eldest);
+            }
+        } else {
+            this.descriptors.get(entry.path);
+        }
+        entry.references += 1;
+        return entry.channel;
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.references -= 1;
+        if (entry.references == 0 && (entry.retired || this.descriptors.get(entry.path) != entry)) {
+            closeChannel(entry);
+        }
+    }
+
+    private void retire(Entry entry) {
+        entry.retired = true;
+        if (this.descriptors.get(entry.path) == entry) {
+            this.descriptors.remove(entry.path);
+        }
+        closeChannel(entry);
+    }
+
+    // Closes the entry's channel now if no response is using it, otherwise the last release does
+    private void closeChannel(Entry entry) {
+        if (entry.channel == null || entry.references > 0) {
+            return;
+        }
+        try {
+            entry.channel.close();
+        } catch (IOException e) {
+            Log.error("Failed to close file channel: ", e.getMessage());
+        }
+        entry.channel = null;
+    }
+
+    public synchronized String getStats() {
+        return "entries=" + this.entries.size() + "/" + this.maxEntries + ", descriptors=" + this.descriptors.size() + "/" + this.maxDescriptors
+                + ", hits=" + this.hits.get() + ", misses=" + this.misses.get();
+    }
+}
\ No newline at end of file
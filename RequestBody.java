@@ -0,0 +1,183 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+
+// Bounded hand-off of a request body from the loop to the script's stdin, spilling to a temp file
+// until the script starts reading
+class RequestBody {
+    public final long length;
+    private final int maxBufferedBytes;
+
+    // Wakes the loop once a script that fell behind has caught up, set before the body is handed to a script
+    public volatile Runnable onDrain;
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private int bufferedBytes;
+    private long received;
+    private FileChannel spill;
+    private long spillWritten;
+    private long spillRead;
+    private boolean attached;
+    private boolean discarded;
+    private boolean cancelled;
+    private boolean producerWaiting;
+
+    public RequestBody(long length, int maxBufferedBytes) {
+        this.length = length;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    // Producer side, called from the select loop
+
+    public synchronized long remaining() {
+        return this.length - this.received;
+    }
+
+    public synchronized boolean isReceived() {
+        return this.received == this.length;
+    }
+
+    // Takes the bytes left in data, which must not run past the end of the body
+    public void offer(ByteBuffer data) throws IOException {
+        synchronized (this) {
+            int length = data.remaining();
+            this.received += length;
+            if (this.discarded || this.cancelled) {
+                data.position(data.limit());
+                return;
+            }
+
+            if (this.spill == null && !this.attached && this.bufferedBytes + length > this.maxBufferedBytes) {
+                this.spill = FileChannel.open(Files.createTempFile("request-body", ".tmp"), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            if (this.spill != null) {
+                while (data.hasRemaining()) {
+                    this.spillWritten += this.spill.write(data, this.spillWritten);
+                }
+            } else {
+                byte[] chunk = new byte[length];
+                data.get(chunk);
+                this.chunks.add(chunk);
+                this.bufferedBytes += length;
+            }
+            notifyAll();
+        }
+    }
+
+    // True while the script is behind, the loop should stop reading until onDrain is called
+    public synchronized boolean isFull() {
+        if (this.attached && !this.discarded && !this.cancelled && unread() >= this.maxBufferedBytes) {
+            this.producerWaiting = true;
+            return true;
+        }
+        return false;
+    }
+
+    // Blocks while the script is behind, for readers that can wait rather than be woken by onDrain
+    public synchronized void awaitRoom() throws InterruptedException {
+        while (this.attached && !this.discarded && !this.cancelled && unread() >= this.maxBufferedBytes) {
+            wait();
+        }
+    }
+
+    // Connection closed before the body was read in full
+    public synchronized void cancel() {
+        this.cancelled = true;
+        closeSpill();
+        notifyAll();
+    }
+
+    // Consumer side, called from CGI threads
+
+    // Copies the body to out as it arrives, returns false if the client went away before sending all of it
+    public boolean writeTo(OutputStream out) throws IOException, InterruptedException {
+        synchronized (this) {
+            this.attached = true;
+        }
+
+        ByteBuffer fileBuffer = null;
+        while (true) {
+            byte[] chunk = null;
+            long position = -1;
+            synchronized (this) {
+                while (this.chunks.isEmpty() && this.spillRead == this.spillWritten && this.received < this.length && !this.cancelled && !this.discarded) {
+                    wait();
+                }
+                if (this.cancelled) {
+                    return false;
+                }
+                if (this.discarded) {
+                    return true;
+                }
+                if (!this.chunks.isEmpty()) {
+                    chunk = this.chunks.poll();
+                    this.bufferedBytes -= chunk.length;
+                } else if (this.spillRead < this.spillWritten) {
+                    position = this.spillRead;
+                } else {
+                    return true;
+                }
+            }
+
+            if (chunk != null) {
+                out.write(chunk);
+            } else {
+                fileBuffer = fileBuffer == null ? ByteBuffer.allocate(Utils.CgiChunkSize) : fileBuffer.clear();
+                int read = this.spill.read(fileBuffer, position);
+                out.write(fileBuffer.array(), 0, Math.max(read, 0));
+                synchronized (this) {
+                    this.spillRead += Math.max(read, 0);
+                }
+            }
+            signalProducer();
+        }
+    }
+
+    // Drops what is buffered and whatever else arrives, called once nothing will read the rest
+    public void discard() {
+        synchronized (this) {
+            if (this.discarded) {
+                return;
+            }
+            this.discarded = true;
+            this.chunks.clear();
+            this.bufferedBytes = 0;
+            closeSpill();
+            notifyAll();
+        }
+        signalProducer();
+    }
+
+    private long unread() {
+        return this.bufferedBytes + this.spillWritten - this.spillRead;
+    }
+
+    private void closeSpill() {
+        if (this.spill == null) {
+            return;
+        }
+        try {
+            this.spill.close();
+        } catch (IOException e) {
+            Log.error("Failed to remove request body spill file: ", e.getMessage());
+        }
+        this.spillRead = this.spillWritten;
+    }
+
+    private void signalProducer() {
+        synchronized (this) {
+            notifyAll();
+            if (!this.producerWaiting || (unread() >= this.maxBufferedBytes && !this.discarded)) {
+                return;
+            }
+            this.producerWaiting = false;
+        }
+        if (this.onDrain != null) {
+            this.onDrain.run();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,397 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+
+// Turns a parsed request into its response, static files inline and dynamic files on the CGI pool
+class RequestHandler {
+    private final Engine engine;
+
+    public RequestHandler(Engine engine) {
+        this.engine = engine;
+    }
+
+    // Returns null if the response will be passed to post once a CGI worker finishes it
+    public HttpResponse handle(HttpRequest request, Socket connectionSocket, Consumer<HttpResponse> post) {
+        HttpResponse response;
+        try {
+            response = handleRequest(request, connectionSocket, post);
+        } catch (Exception e) {
+            Log.debug("Failed to handle request: ", e.getMessage());
+            response = new HttpResponse(400, "Bad Request");
+        }
+
+        // Answered without a script, so nothing will read the body
+        if (response != null && request.body != null) {
+            request.body.discard();
+        }
+        return response;
+    }
+
+    // Load score for upstream balancers: the worst of connection use against the adaptive limits, CGI pool saturation
+    // and p99 latency against its target, where 1 means saturated. 503 once this engine can't take another connection.
+    private HttpResponse loadResponse() {
+        int connections = 0;
+        int limit = 0;
+        long p99Micros = 0;
+        for (Engine engine : HttpServer.engines) {
+            connections += engine.getConnectionCount();
+            limit += engine.getAdmission().getLimit();
+            p99Micros = Math.max(p99Micros, engine.getAdmission().getP99Micros());
+        }
+        double cgiSaturation = HttpServer.cgiExecutor.getSaturation();
+        double score = Math.max(Math.max((double) connections / limit, cgiSaturation), p99Micros / (Utils.AdmissionTargetLatency * 1000.0));
+
+        String body = String.format(Locale.ROOT, "{\"score\": %.3f, \"connections\": %d, \"limit\": %d, \"cgiActive\": %d, \"cgiQueueDepth\": %d, \"cgiSaturation\": %.3f, \"p99Micros\": %d}\n",
+                score, connections, limit, HttpServer.cgiExecutor.getActiveCount(), HttpServer.cgiExecutor.getQueueDepth(), cgiSaturation, p99Micros);
+        boolean full = !this.engine.getAdmission().admit(this.engine.getConnectionCount() + 1);
+        return new HttpResponse(full ? 503 : 200, full ? "Service Unavailable" : "OK", "application/json", body.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private HttpResponse handleRequest(HttpRequest request, Socket connectionSocket, Consumer<HttpResponse> post) throws Exception {
+        int statusCode;
+        String statusMessage;
+
+        // Check heartbeat request
+        if (request.path.equals("/load")) {
+            return loadResponse();
+        }
+
+        // Metrics in Prometheus text, or JSON with ?format=json
+        if (request.path.equals("/server-status")) {
+            if ("json".equals(request.queryParams.get("format"))) {
+                return new HttpResponse(200, "OK", "application/json", Metrics.toJson(HttpServer.engines).getBytes(StandardCharsets.UTF_8));
+            }
+            return new HttpResponse(200, "OK", "text/plain; version=0.0.4", Metrics.toPrometheus(HttpServer.engines).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Check virtual host is valid, against the routing table as of now even if a reload swaps it meanwhile
+        Map<String, String> virtualHosts = HttpServer.routes.virtualHosts;
+        String host = request.getHeader("Host");
+        String virtualHostPath = host == null ? null : virtualHosts.get(host);
+        if (virtualHostPath == null) {
+            host = "__DEFAULT__";
+            virtualHostPath = virtualHosts.get(host);
+        }
+        request.virtualHost = host;
+
+        // Make sure no relative path
+        String[] parts = request.path.split("/");
+        for (String part : parts) {
+            if (part.equals("..")) {
+                Log.debug("Relative path not allowed");
+                return new HttpResponse(400, "Malformed Request");
+            }
+        }
+
+        // Add default file if path ends in /, document roots are already absolute
+        String path = virtualHostPath + request.path;
+        OpenFileCache.Entry file;
+        try {
+            if (path.endsWith("/")) {
+                OpenFileCache.Entry mobileIndex = request.isMobileUserAgent ? HttpServer.openFileCache.get(path + "index_m.html") : null;
+                path += mobileIndex != null && mobileIndex.isFile() ? "index_m.html" : "index.html";
+                file = mobileIndex != null && mobileIndex.isFile() ? mobileIndex : HttpServer.openFileCache.get(path);
+            } else {
+                file = HttpServer.openFileCache.get(path);
+            }
+        } catch (IOException e) {
+            Log.debug("Failed to get content type: ", e.getMessage());
+            return new HttpResponse(400, "Malformed Request");
+        }
+
+        // Check if file exists and isn't a directory
+        if (!file.isFile()) {
+            Log.debug("File not found: ", path);
+            return new HttpResponse(404, "Not Found");
+        }
+        String contentType = file.contentType;
+
+        // Check if content type is accepted
+        if (request.acceptTypes != null && !request.acceptTypes.contains("*/*") && !request.acceptTypes.contains(contentType)) {
+            Log.debug("Content type not accepted by user: ", path);
+            return new HttpResponse(406, "Not Acceptable");
+        }
+
+        // Check if file has authentication requirements, before anything about the file is revealed
+        String unauthorizedRealm = HttpServer.htaccessCache.check(new File(path).getParentFile(), request);
+        if (unauthorizedRealm != null) {
+            Log.debug("Invalid credentials");
+            return new HttpResponse(401, "Unauthorized", unauthorizedRealm);
+        }
+
+        // Check if the client's copy is current, by entity tag if it sent any (If-Modified-Since is then ignored)
+        Date lastModifiedDate = new Date(file.lastModified);
+        if (!file.executable && request.ifNoneMatch != null) {
+            String etag = Utils.matchETag(request.ifNoneMatch, file.etag(null), file.etag(ContentEncoder.Gzip), file.etag(ContentEncoder.Deflate));
+            if (etag != null) {
+                Log.debug("Entity tag matched: ", path);
+                HttpResponse response = new HttpResponse(304, "Not Modified");
+                response.etag = etag;
+                return response;
+            }
+        } else if (!file.executable && request.ifModifiedSinceDate != null && file.lastModified / 1000 <= request.ifModifiedSinceDate.getTime() / 1000) {
+            // Last-Modified only has whole seconds
+            Log.debug("File not modified: ", path);
+            return new HttpResponse(304, "Not Modified");
+        }
+
+        if (file.executable) {
+            return submitDynamicFile(post, connectionSocket, request, path, lastModifiedDate, contentType);
+        }
+
+        switch (request.method) {
+            case HttpMethod.GET:
+                // Byte ranges are always served from the file as is, never from a compressed variant
+                ByteRanges ranges = ByteRanges.parse(request.range, file.length);
+                if (ranges != null && ByteRanges.ifRangeMatches(request.ifRange, file.lastModified, file.etag(null))) {
+                    return rangeResponse(path, file, ranges, lastModifiedDate, contentType);
+                }
+
+                boolean compressible = Utils.Compression && ContentEncoder.isCompressible(contentType);
+                HttpResponse response;
+
+                // A precompressed sidecar at least as new as the file is streamed as is
+                if (compressible && request.acceptsGzip) {
+                    OpenFileCache.Entry sidecar = HttpServer.openFileCache.get(path + ".gz");
+                    if (sidecar.isFile() && sidecar.lastModified >= file.lastModified) {
+                        response = new HttpResponse(200, "OK", lastModifiedDate, contentType, sidecar);
+                        response.etag = file.etag(ContentEncoder.Gzip);
+                        return encoded(response, ContentEncoder.Gzip);
+                    }
+                }
+
+                if (!HttpServer.fileCache.isCacheable(file.length)) {
+                    // Medium files are served from a shared mapping when there is room for them
+                    ByteBuffer mappedBody = HttpServer.mappedFileCache.get(new File(path), file.lastModified, file.length);
+                    if (mappedBody != null) {
+                        response = new HttpResponse(200, "OK", lastModifiedDate, contentType, mappedBody);
+                    } else {
+                        // Large files are streamed from disk over a channel shared through the open file cache
+                        response = new HttpResponse(200, "OK", lastModifiedDate, contentType, file);
+                    }
+                } else {
+                    byte[] contentBytes = HttpServer.fileCache.get(new File(path), file.lastModified, file.length);
+                    String encoding = ContentEncoder.negotiate(request, contentType, contentBytes.length);
+                    byte[] compressed = encoding == null ? null : HttpServer.compressedFileCache.get(new File(path), file.lastModified, file.length, contentBytes, encoding);
+                    if (compressed != null) {
+                        response = new HttpResponse(200, "OK", lastModifiedDate, contentType, compressed);
+                        response.etag = file.etag(encoding);
+                        return encoded(response, encoding);
+                    }
+                    response = new HttpResponse(200, "OK", lastModifiedDate, contentType, contentBytes);
+                }
+                response.varyAcceptEncoding = compressible;
+                response.acceptRanges = true;
+                response.etag = file.etag(null);
+                return response;
+            case HttpMethod.POST:
+            case HttpMethod.DELETE:
+                Log.debug("File not executable: ", path);
+                return new HttpResponse(500, "Internal Server Error");
+            default:
+                Log.debug("Unsupported method: ", request.method);
+                return new HttpResponse(501, "Not Implemented");
+        }
+    }
+
+    // 206 with the requested pieces of the file, or 416 if none of them are in it
+    private static HttpResponse rangeResponse(String path, OpenFileCache.Entry file, ByteRanges ranges, Date lastModifiedDate, String contentType) throws IOException {
+        if (ranges.count == 0) {
+            HttpResponse response = new HttpResponse(416, "Range Not Satisfiable");
+            response.contentRange = "bytes */" + file.length;
+            return response;
+        }
+
+        // Pieces of a file that is in memory anyway are views of its buffer, others are sent from the shared channel
+        ByteBuffer whole;
+        if (HttpServer.fileCache.isCacheable(file.length)) {
+            whole = ByteBuffer.wrap(HttpServer.fileCache.get(new File(path), file.lastModified, file.length));
+        } else {
+            whole = HttpServer.mappedFileCache.get(new File(path), file.lastModified, file.length);
+        }
+
+        HttpResponse response;
+        if (ranges.count == 1) {
+            if (whole != null) {
+                response = new HttpResponse(206, "Partial Content", lastModifiedDate, contentType, whole.slice((int) ranges.starts[0], (int) ranges.length(0)));
+            } else {
+                response = new HttpResponse(206, "Partial Content", lastModifiedDate, contentType, file);
+                response.bodyOffset = ranges.starts[0];
+                response.contentLength = ranges.length(0);
+            }
+            response.contentRange = "bytes " + ranges.starts[0] + "-" + ranges.ends[0] + "/" + file.length;
+            response.acceptRanges = true;
+            response.etag = file.etag(null);
+            return response;
+        }
+
+        // Several ranges go out as multipart/byteranges, each piece after its own part header
+        String boundary = ByteRanges.newBoundary();
+        ByteBuffer[] partHeaders = new ByteBuffer[ranges.count + 1];
+        for (int i = 0; i < ranges.count; i++) {
+            String partHeader = "\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes "
+                    + ranges.starts[i] + "-" + ranges.ends[i] + "/" + file.length + "\r\n\r\n";
+            partHeaders[i] = ByteBuffer.wrap(partHeader.getBytes(StandardCharsets.US_ASCII));
+        }
+        partHeaders[ranges.count] = ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        String multipartType = "multipart/byteranges; boundary=" + boundary;
+        if (whole != null) {
+            ByteBuffer[] bodyBuffers = new ByteBuffer[ranges.count * 2 + 1];
+            for (int i = 0; i < ranges.count; i++) {
+                bodyBuffers[i * 2] = partHeaders[i];
+                bodyBuffers[i * 2 + 1] = whole.slice((int) ranges.starts[i], (int) ranges.length(i));
+            }
+            bodyBuffers[ranges.count * 2] = partHeaders[ranges.count];
+            response = new HttpResponse(206, "Partial Content", lastModifiedDate, multipartType, bodyBuffers);
+        } else {
+            response = new HttpResponse(206, "Partial Content", lastModifiedDate, multipartType, file);
+            response.partHeaders = partHeaders;
+            response.partOffsets = Arrays.copyOf(ranges.starts, ranges.count);
+            response.partLengths = new long[ranges.count];
+            response.contentLength = partHeaders[ranges.count].remaining();
+            for (int i = 0; i < ranges.count; i++) {
+                response.partLengths[i] = ranges.length(i);
+                response.contentLength += partHeaders[i].remaining() + ranges.length(i);
+            }
+        }
+        response.acceptRanges = true;
+        response.etag = file.etag(null);
+        return response;
+    }
+
+    private static HttpResponse encoded(HttpResponse response, String encoding) {
+        response.contentEncoding = encoding;
+        response.varyAcceptEncoding = true;
+        return response;
+    }
+
+    private HttpResponse submitDynamicFile(Consumer<HttpResponse> post, Socket connectionSocket, HttpRequest request, String path, Date lastModifiedDate, String contentType) {
+        // Build the environment here, the socket and the header buffer belong to the connection's thread
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("REQUEST_METHOD", request.method.toString());
+        environment.put("REMOTE_ADDR", connectionSocket.getInetAddress().getHostAddress());
+        environment.put("REMOTE_PORT", Integer.toString(connectionSocket.getPort()));
+        environment.put("SERVER_NAME", Utils.ServerName);
+        if (request.body != null) {
+            request.body.onDrain = () -> post.accept(null);
+            environment.put("CONTENT_LENGTH", Long.toString(request.body.length));
+            String requestContentType = request.getHeader("Content-Type");
+            if (requestContentType != null) {
+                environment.put("CONTENT_TYPE", requestContentType);
+            }
+        }
+
+        boolean accepted = HttpServer.cgiExecutor.submit(() -> {
+            HttpResponse response;
+            try {
+                response = runDynamicFile(post, request, environment, path, lastModifiedDate, contentType);
+            } catch (TimeoutException e) {
+                Log.debug("Dynamic file timed out: ", path);
+                response = new HttpResponse(504, "Gateway Timeout");
+            } catch (Exception e) {
+                Log.debug("Failed to execute dynamic file: ", e.getMessage());
+                response = new HttpResponse(400, "Bad Request");
+            } finally {
+                // Whatever of the body the script didn't read
+                if (request.body != null) {
+                    request.body.discard();
+                }
+            }
+
+            // A streamed response was already posted when it was committed
+            if (response != null) {
+                post.accept(response);
+            }
+        });
+
+        if (!accepted) {
+            Log.info("CGI queue full");
+            return new HttpResponse(503, "Service Unavailable", Utils.CgiRetryAfter);
+        }
+        return null;
+    }
+
+    // Runs on a CGI worker thread. Returns null if the output was streamed instead.
+    private HttpResponse runDynamicFile(Consumer<HttpResponse> post, HttpRequest request, Map<String, String> environment, String path, Date lastModifiedDate, String contentType) throws Exception {
+        // Scripts with a warm worker pool get the request over its pipe instead of a fresh process
+        CgiWorkerPool pool = HttpServer.cgiWorkerPools.get(path);
+        if (pool != null) {
+            return dynamicFileResponse(request, pool.execute(environment, request.body), lastModifiedDate, contentType);
+        }
+
+        // The body goes to the script's stdin, never its arguments
+        ProcessBuilder pb = new ProcessBuilder(path);
+        pb.environment().putAll(environment);
+
+        // DELETE responses have no body, so there is nothing worth streaming
+        if (request.method == HttpMethod.DELETE) {
+            return dynamicFileResponse(request, HttpServer.cgiExecutor.run(pb, request.body), lastModifiedDate, contentType);
+        }
+
+        boolean chunked = request.version.equals("HTTP/1.1");
+        int statusCode = request.method == HttpMethod.POST ? 201 : 200;
+        String statusMessage = request.method == HttpMethod.POST ? "Created" : "OK";
+        CgiStream stream = new CgiStream((int) Utils.CgiStreamBufferSize,
+                committed -> post.accept(streamResponse(request, statusCode, statusMessage, lastModifiedDate, contentType, committed, chunked)),
+                () -> post.accept(null));
+
+        boolean success;
+        try {
+            success = HttpServer.cgiExecutor.stream(pb, stream, request.body) == 0;
+        } catch (Exception e) {
+            if (!stream.finish(false)) {
+                throw e;
+            }
+            return null;
+        }
+
+        if (stream.finish(success)) {
+            return null;
+        }
+
+        // Script exited before the stream was committed, so answer with its exact status and length
+        return dynamicFileResponse(request, success ? stream.drain() : null, lastModifiedDate, contentType);
+    }
+
+    private HttpResponse dynamicFileResponse(HttpRequest request, byte[] contentBytes, Date lastModifiedDate, String contentType) {
+        if (contentBytes == null) {
+            return new HttpResponse(400, "Bad Request");
+        } else if (request.method == HttpMethod.DELETE) {
+            return new HttpResponse(204, "No Content");
+        }
+
+        int statusCode = request.method == HttpMethod.POST ? 201 : 200;
+        String statusMessage = request.method == HttpMethod.POST ? "Created" : "OK";
+
+        // Output is compressed on this CGI thread, not the loop
+        String encoding = ContentEncoder.negotiate(request, contentType, contentBytes.length);
+        if (encoding != null) {
+            byte[] compressed = ContentEncoder.compress(contentBytes, encoding);
+            if (compressed.length < contentBytes.length) {
+                return encoded(new HttpResponse(statusCode, statusMessage, lastModifiedDate, contentType, compressed), encoding);
+            }
+        }
+        HttpResponse response = new HttpResponse(statusCode, statusMessage, lastModifiedDate, contentType, contentBytes);
+        response.varyAcceptEncoding = Utils.Compression && ContentEncoder.isCompressible(contentType);
+        return response;
+    }
+
+    // Streamed output is compressed chunk by chunk as it is sent, its length isn't known so the size threshold doesn't apply
+    private static HttpResponse streamResponse(HttpRequest request, int statusCode, String statusMessage, Date lastModifiedDate, String contentType, CgiStream stream, boolean chunked) {
+        HttpResponse response = new HttpResponse(statusCode, statusMessage, contentType, stream, chunked);
+        // Same headers as a buffered script response
+        response.lastModifiedDate = lastModifiedDate;
+        String encoding = ContentEncoder.negotiate(request, contentType, Long.MAX_VALUE);
+        if (encoding != null) {
+            return encoded(response, encoding);
+        }
+        response.varyAcceptEncoding = Utils.Compression && ContentEncoder.isCompressible(contentType);
+        return response;
+    }
+}
\ No newline at end of file
@@ -7,15 +7,30 @@ import java.nio.channels.*;
 
 public class RequestState {
     public HttpRequest request;
-    public HttpResponse response;
     public ByteBuffer in;
-    public ByteBuffer body;
-    public long connectionTime;
     public boolean doneReading;
+    public long bodyPosition;
+    public HttpRequestParser parser;
 
-    public RequestState() {
-        in = ByteBuffer.allocate(1024);
-        connectionTime = System.currentTimeMillis();
+    // The connection's single deadline in its loop's TimerWheel
+    public TimerWheel.Timeout timeout;
+
+    // Responses waiting to be written, in request order, and the request whose response a CGI worker is still producing
+    public ArrayDeque<HttpResponse> responses = new ArrayDeque<HttpResponse>(2);
+    public HttpRequest awaitingRequest;
+
+    // Time spent reading and parsing the current request so far
+    public long parseNanos;
+
+    // Bytes of the current request's body that arrived in the header buffer
+    private int bodyBytesInHeaderBuffer;
+
+    // Body still arriving, of the current request or of one already handed to its script
+    public RequestBody receiving;
+
+    // Header buffer and parser only exist while a request is being read, idle connections hold neither
+    public RequestState(SelectionKey key) {
+        timeout = new TimerWheel.Timeout(key);
         doneReading = false;
     }
 
@@ -23,52 +38,144 @@ public class RequestState {
         return in;
     }
 
-    public void appendInBytes(ByteBuffer bytes, int length) throws Exception {
-        byte[] array = bytes.array();
-
-        if (request == null) {
-            // Still reading headers
-            in.put(array, 0, length);
-
-            // If we find doubleCRLF then its end of headers
-            int doubleCRLFIndex = getDoubleCRLFIndex(array);
-            if (doubleCRLFIndex != -1) {
-                request = new HttpRequest(in);
-                
-                if (request.method == HttpMethod.GET) {
-                    doneReading = true;
-                } else {
-                    // Start reading body
-                    body = ByteBuffer.allocate(Integer.parseInt(request.headers.get("Content-Length")));
-                    
-                    // Read bytes from array into body
-                    readBodyBytes(Arrays.copyOfRange(array, doubleCRLFIndex + 4, length));
-                }
+    // True between requests on a keep-alive connection
+    public boolean isIdle() {
+        return request == null && (in == null || in.position() == 0) && responses.isEmpty() && awaitingRequest == null && receiving == null;
+    }
+
+    public HttpResponse currentResponse() {
+        return responses.peek();
+    }
+
+    // Queues a response, marking it to close the connection unless the request asked to keep it open
+    public void enqueue(HttpResponse response, HttpRequest request) {
+        response.request = request;
+        response.enqueuedNanos = System.nanoTime();
+        if (request == null || !request.keepAlive || response.statusCode == 408) {
+            response.closeConnection = true;
+        } else if (request.version.equals("HTTP/1.0")) {
+            response.announceKeepAlive = true;
+        }
+        responses.add(response);
+    }
+
+    // Moves on to the next request on this connection, keeping any pipelined bytes the client already sent for it
+    public void nextRequest(BufferPool pool) throws Exception {
+        int consumed = parser.headerEnd + bodyBytesInHeaderBuffer;
+        in.flip();
+        in.position(consumed);
+        in.compact();
+
+        request = null;
+        doneReading = false;
+        bodyBytesInHeaderBuffer = 0;
+
+        // Nothing pipelined, so give the buffer back until the client sends again
+        if (in.position() == 0) {
+            pool.release(in);
+            in = null;
+            parser = null;
+            return;
+        }
+
+        parser = new HttpRequestParser(Utils.MaxHeaderCount);
+        if (parser.parse(in)) {
+            startBody();
+        }
+    }
+
+    // Returns borrowed buffers and any unsent responses, called once the connection is closed
+    public void release(BufferPool pool) {
+        for (HttpResponse response : responses) {
+            response.close();
+        }
+        responses.clear();
+        pool.release(in);
+        in = null;
+        if (receiving != null) {
+            receiving.cancel();
+            receiving = null;
+        }
+    }
+
+    // Reads whatever the client has sent so far, returns -1 once the client closed its side
+    public int readFrom(ReadableByteChannel channel, BufferPool pool) throws Exception {
+        if (receiving != null) {
+            // Body bytes are passed on in pieces, never reading past the body into the next request
+            ByteBuffer piece = pool.acquire(Utils.CgiChunkSize);
+            piece.limit((int) Math.min(piece.capacity(), receiving.remaining()));
+            int bytesRead = channel.read(piece);
+            if (bytesRead > 0) {
+                receiving.offer(piece.flip());
             }
-        } else if (body != null) {
-            // Still reading body
-            readBodyBytes(array);
+            pool.release(piece);
+
+            if (receiving.isReceived()) {
+                receiving = null;
+                doneReading = doneReading || request != null;
+            }
+            return bytesRead;
+        } else if (request == null) {
+            // Still reading headers, borrow a buffer or grow it (up to the limit) when it fills up
+            if (in == null) {
+                in = pool.acquire(Utils.InitialHeaderBufferSize);
+                parser = new HttpRequestParser(Utils.MaxHeaderCount);
+            } else if (in.position() == in.capacity()) {
+                growInBytes(pool);
+            }
+            if (in.position() >= Utils.MaxHeaderSize) {
+                throw new HttpRequestParser.ParseException(431, "Request Header Fields Too Large", "Headers exceed " + Utils.MaxHeaderSize + " bytes");
+            }
+            in.limit(Math.min(in.capacity(), Utils.MaxHeaderSize));
+
+            int bytesRead = channel.read(in);
+            if (bytesRead > 0 && parser.parse(in)) {
+                startBody();
+            }
+            return bytesRead;
         } else {
             assert false;
+            return 0;
         }
-        
     }
 
-    private void readBodyBytes(byte[] array) {
-        for (int i = 0; i < array.length; i++) {
-            body.put(array[i]);
-            if (i == body.capacity() - 1) {
-                doneReading = true;
-            }
+    private void startBody() throws Exception {
+        request = new HttpRequest(in, parser);
+
+        // The length is checked before anything is allocated for the body
+        String contentLength = request.getHeader("Content-Length");
+        long length;
+        try {
+            length = contentLength == null ? 0 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new HttpRequestParser.ParseException(400, "Bad Request", "Invalid Content-Length: " + contentLength);
+        }
+        if (length < 0) {
+            throw new HttpRequestParser.ParseException(400, "Bad Request", "Invalid Content-Length: " + contentLength);
+        } else if (length > Utils.MaxRequestBodySize) {
+            throw new HttpRequestParser.ParseException(413, "Payload Too Large", "Body of " + length + " bytes exceeds " + Utils.MaxRequestBodySize);
+        }
+        if (length == 0) {
+            doneReading = true;
+            return;
         }
+
+        // Any body bytes that arrived with the headers are passed on, the rest as it is read
+        request.body = new RequestBody(length, (int) Utils.RequestBodyBufferSize);
+        int available = (int) Math.min(in.position() - parser.headerEnd, length);
+        request.body.offer(in.duplicate().limit(parser.headerEnd + available).position(parser.headerEnd));
+        bodyBytesInHeaderBuffer = available;
+
+        // Big bodies are handed over as they arrive, so the request is handled as soon as its headers are in
+        receiving = request.body.isReceived() ? null : request.body;
+        doneReading = receiving == null || length > Utils.RequestBodyBufferSize;
     }
 
-    private int getDoubleCRLFIndex(byte[] array) {
-        for (int i = 0; i < array.length - 3; i++) {
-            if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n') {
-                return i;
-            }
-        }
-        return -1;
+    private void growInBytes(BufferPool pool) {
+        ByteBuffer grown = pool.acquire(Math.min(in.capacity() * 2, Utils.MaxHeaderSize));
+        in.flip();
+        grown.put(in);
+        pool.release(in);
+        in = grown;
     }
 }
\ No newline at end of file
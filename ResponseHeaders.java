@@ -0,0 +1,213 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+
+// Writes response headers straight into a byte buffer from pre-encoded constants, no strings built
+class ResponseHeaders {
+    public static final byte[] Crlf = ascii("\r\n");
+    public static final byte[] Server = ascii("Server: " + Utils.ServerName + "\r\n");
+    public static final byte[] LastModified = ascii("Last-Modified: ");
+    public static final byte[] ContentType = ascii("Content-Type: ");
+    public static final byte[] ContentLength = ascii("Content-Length: ");
+    public static final byte[] ContentLengthZero = ascii("Content-Length: 0\r\n");
+    public static final byte[] ContentEncoding = ascii("Content-Encoding: ");
+    public static final byte[] VaryAcceptEncoding = ascii("Vary: Accept-Encoding\r\n");
+    public static final byte[] ETag = ascii("ETag: ");
+    public static final byte[] AcceptRangesBytes = ascii("Accept-Ranges: bytes\r\n");
+    public static final byte[] ContentRange = ascii("Content-Range: ");
+    public static final byte[] TransferEncodingChunked = ascii("Transfer-Encoding: chunked\r\n");
+    public static final byte[] ConnectionClose = ascii("Connection: close\r\n");
+    public static final byte[] ConnectionKeepAlive = ascii("Connection: keep-alive\r\n");
+    public static final byte[] WwwAuthenticate = ascii("WWW-Authenticate: Basic realm=");
+    public static final byte[] RetryAfter = ascii("Retry-After: ");
+
+    private static final byte[] DatePrefix = ascii("Date: ");
+    private static final byte[][] DayNames = { ascii("Thu, "), ascii("Fri, "), ascii("Sat, "), ascii("Sun, "), ascii("Mon, "), ascii("Tue, "), ascii("Wed, ") };
+    private static final byte[][] MonthNames = { ascii(" Jan "), ascii(" Feb "), ascii(" Mar "), ascii(" Apr "), ascii(" May "), ascii(" Jun "), ascii(" Jul "), ascii(" Aug "), ascii(" Sep "), ascii(" Oct "), ascii(" Nov "), ascii(" Dec ") };
+    private static final byte[] Gmt = ascii(" GMT");
+    private static final int HttpDateLength = 29;
+    private static final int MaxDecimalLength = 19;
+
+    // Room for everything toHeaderBuffer can write other than its string values: the status line without its reason,
+    // every header at once, the longest dates and numbers
+    public static final int FixedSize = "HTTP/1.1 000 \r\n".length() + DatePrefix.length + HttpDateLength + Crlf.length + Server.length
+            + LastModified.length + HttpDateLength + Crlf.length + ContentEncoding.length + Crlf.length + VaryAcceptEncoding.length
+            + ETag.length + Crlf.length + AcceptRangesBytes.length + ContentRange.length + Crlf.length
+            + ContentType.length + Crlf.length + ContentLength.length + MaxDecimalLength + Crlf.length + TransferEncodingChunked.length
+            + ConnectionKeepAlive.length + WwwAuthenticate.length + Crlf.length + RetryAfter.length + MaxDecimalLength + Crlf.length
+            + Crlf.length;
+
+    // Reason phrases the server uses, their status lines are encoded once
+    private static final String[] Reasons = new String[600];
+    private static final byte[][] StatusLines = new byte[600][];
+    static {
+        String[] reasons = { "200 OK", "201 Created", "204 No Content", "206 Partial Content", "304 Not Modified", "400 Bad Request", "401 Unauthorized",
+                "404 Not Found", "406 Not Acceptable", "408 Request Timeout", "413 Payload Too Large", "416 Range Not Satisfiable", "431 Request Header Fields Too Large",
+                "500 Internal Server Error", "501 Not Implemented", "503 Service Unavailable", "504 Gateway Timeout" };
+        for (String reason : reasons) {
+            int code = Integer.parseInt(reason.substring(0, 3));
+            Reasons[code] = reason.substring(4);
+            StatusLines[code] = ascii("HTTP/1.1 " + reason + "\r\n");
+        }
+    }
+
+    // Bodiless responses sent whole from the snapshot, in close, keep-alive and plain variants
+    private static final int[] FixedCodes = { 400, 404, 408, 503 };
+    private static final int FixedClose = 0;
+    private static final int FixedKeepAlive = 1;
+    private static final int FixedPlain = 2;
+
+    // Date header and fixed responses for one second, replaced (never modified) once the second has passed
+    private static class Snapshot {
+        final long second;
+        final byte[] date;
+        final int retryAfter;
+        final byte[][] fixed = new byte[FixedCodes.length * 3][];
+
+        Snapshot(long second) {
+            this.second = second;
+
+            ByteBuffer buffer = ByteBuffer.allocate(FixedSize);
+            buffer.put(DatePrefix);
+            putHttpDate(buffer, second * 1000);
+            buffer.put(Crlf);
+            this.date = new byte[buffer.flip().remaining()];
+            buffer.get(this.date);
+
+            // The only bodiless 503 the request path sends is a full CGI queue
+            this.retryAfter = Utils.CgiRetryAfter;
+            for (int i = 0; i < FixedCodes.length; i++) {
+                int code = FixedCodes[i];
+                for (int variant = FixedClose; variant <= FixedPlain; variant++) {
+                    buffer.clear();
+                    buffer.put(StatusLines[code]).put(this.date).put(Server).put(ContentLengthZero);
+                    if (variant == FixedClose) {
+                        buffer.put(ConnectionClose);
+                    } else if (variant == FixedKeepAlive) {
+                        buffer.put(ConnectionKeepAlive);
+                    }
+                    if (code == 503) {
+                        buffer.put(RetryAfter);
+                        putDecimal(buffer, this.retryAfter);
+                        buffer.put(Crlf);
+                    }
+                    buffer.put(Crlf);
+                    this.fixed[i * 3 + variant] = new byte[buffer.flip().remaining()];
+                    buffer.get(this.fixed[i * 3 + variant]);
+                }
+            }
+        }
+    }
+
+    private static volatile Snapshot snapshot = new Snapshot(System.currentTimeMillis() / 1000);
+
+    private static Snapshot current() {
+        Snapshot current = snapshot;
+        long second = System.currentTimeMillis() / 1000;
+        if (current.second != second) {
+            // Loops racing on the same second each build one, whichever is published last wins
+            current = new Snapshot(second);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    // "Date: ...\r\n" for the current second
+    public static byte[] dateHeader() {
+        return current().date;
+    }
+
+    // Complete encoding of a bodiless fixed response, or null if it isn't one of them
+    public static byte[] fixedResponse(int statusCode, String statusMessage, boolean closeConnection, boolean announceKeepAlive, int retryAfterSeconds) {
+        Snapshot current = current();
+        for (int i = 0; i < FixedCodes.length; i++) {
+            if (FixedCodes[i] != statusCode) {
+                continue;
+            }
+            if (!Reasons[statusCode].equals(statusMessage) || retryAfterSeconds != (statusCode == 503 ? current.retryAfter : -1)) {
+                return null;
+            }
+            return current.fixed[i * 3 + (closeConnection ? FixedClose : announceKeepAlive ? FixedKeepAlive : FixedPlain)];
+        }
+        return null;
+    }
+
+    public static void putStatusLine(ByteBuffer buffer, int statusCode, String statusMessage) {
+        if (statusCode >= 0 && statusCode < StatusLines.length && StatusLines[statusCode] != null && Reasons[statusCode].equals(statusMessage)) {
+            buffer.put(StatusLines[statusCode]);
+            return;
+        }
+        putAscii(buffer, "HTTP/1.1 ");
+        putDecimal(buffer, statusCode);
+        buffer.put((byte) ' ');
+        putAscii(buffer, statusMessage);
+        buffer.put(Crlf);
+    }
+
+    // Header values are ASCII, anything else is replaced rather than sent as a partial UTF-8 sequence
+    public static void putAscii(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    public static void putDecimal(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    public static void putHex(ByteBuffer buffer, int value) {
+        int shift = Math.max(28 - Integer.numberOfLeadingZeros(value) / 4 * 4, 0);
+        for (; shift >= 0; shift -= 4) {
+            buffer.put((byte) Character.forDigit((value >>> shift) & 0xf, 16));
+        }
+    }
+
+    // RFC 1123 date in GMT, e.g. "Sun, 18 Oct 2026 09:30:00 GMT"
+    public static void putHttpDate(ByteBuffer buffer, long millis) {
+        long seconds = Math.floorDiv(millis, 1000);
+        long days = Math.floorDiv(seconds, 86400);
+        int secondOfDay = Math.floorMod(seconds, 86400);
+
+        // Civil date from days since the epoch (1970-01-01 was a Thursday)
+        long shifted = days + 719468;
+        long era = Math.floorDiv(shifted, 146097);
+        long dayOfEra = shifted - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        buffer.put(DayNames[Math.floorMod(days, 7)]);
+        putTwoDigits(buffer, day);
+        buffer.put(MonthNames[month - 1]);
+        putDecimal(buffer, year);
+        buffer.put((byte) ' ');
+        putTwoDigits(buffer, secondOfDay / 3600);
+        buffer.put((byte) ':');
+        putTwoDigits(buffer, secondOfDay / 60 % 60);
+        buffer.put((byte) ':');
+        putTwoDigits(buffer, secondOfDay % 60);
+        buffer.put(Gmt);
+    }
+
+    private static void putTwoDigits(ByteBuffer buffer, int value) {
+        buffer.put((byte) ('0' + value / 10)).put((byte) ('0' + value % 10));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
\ No newline at end of file
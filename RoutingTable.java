@@ -0,0 +1,28 @@
+import java.util.*;
+
+
+// Immutable snapshot of the virtual hosts and directives in server.conf, swapped as a whole on reload
+class RoutingTable {
+    public final Map<String, String> virtualHosts;
+    public final Map<String, String> config;
+    public final int generation;
+
+    public RoutingTable(Map<String, String> config, Map<String, String> virtualHosts, int generation) {
+        this.config = Collections.unmodifiableMap(new HashMap<String, String>(config));
+        this.virtualHosts = Collections.unmodifiableMap(new HashMap<String, String>(virtualHosts));
+        this.generation = generation;
+    }
+
+    // Directives other than virtual hosts that differ from the ones the server started with, which stay in effect
+    public List<String> changedDirectives(Map<String, String> running) {
+        Set<String> names = new TreeSet<String>(this.config.keySet());
+        names.addAll(running.keySet());
+        List<String> changed = new ArrayList<String>();
+        for (String name : names) {
+            if (!Objects.equals(this.config.get(name), running.get(name))) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+import java.nio.channels.SelectionKey;
+import java.util.*;
+
+
+// Per select loop hashed timing wheel, one reusable deadline per connection, only the owning loop uses it
+class TimerWheel {
+    public static class Timeout {
+        // What the connection was waiting for when the deadline was set
+        public static final int Idle = 0;
+        public static final int HeaderRead = 1;
+        public static final int BodyRead = 2;
+        public static final int WriteStall = 3;
+
+        public final SelectionKey key;
+        public int kind;
+        public long deadline;
+
+        private Timeout prev;
+        private Timeout next;
+        private int slot = -1;
+
+        public Timeout(SelectionKey key) {
+            this.key = key;
+        }
+
+        public boolean isScheduled() {
+            return this.slot != -1;
+        }
+    }
+
+    private final Timeout[] slots;
+    private final int mask;
+    private final long tickMillis;
+    private long currentTick;
+    private int size;
+
+    // slotCount is rounded up to a power of two
+    public TimerWheel(int slotCount, long tickMillis) {
+        int count = Integer.highestOneBit(Math.max(slotCount - 1, 1)) << 1;
+        this.slots = new Timeout[count];
+        this.mask = count - 1;
+        this.tickMillis = tickMillis;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    public void schedule(Timeout timeout, int kind, long deadline) {
+        cancel(timeout);
+
+        // Never hash into a slot that was already swept for this turn
+        long tick = Math.max((deadline + this.tickMillis - 1) / this.tickMillis, this.currentTick + 1);
+        int slot = (int) (tick & this.mask);
+
+        timeout.kind = kind;
+        timeout.deadline = deadline;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = this.slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        this.slots[slot] = timeout;
+        this.size += 1;
+    }
+
+    public void cancel(Timeout timeout) {
+        if (!timeout.isScheduled()) {
+            return;
+        }
+
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            this.slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        this.size -= 1;
+    }
+
+    // How long select can block before the next occupied slot is due, 0 (block indefinitely) if nothing is scheduled
+    public long millisUntilNext(long now) {
+        if (this.size == 0) {
+            return 0;
+        }
+        for (long tick = this.currentTick + 1; tick <= this.currentTick + this.slots.length; tick++) {
+            if (this.slots[(int) (tick & this.mask)] != null) {
+                return Math.max(tick * this.tickMillis - now, 1);
+            }
+        }
+        return 0;
+    }
+
+    // Unlinks every timeout due by now and adds it to expired, sweeping each slot that came due since the last call
+    public void expire(long now, List<Timeout> expired) {
+        long nowTick = now / this.tickMillis;
+        if (nowTick <= this.currentTick) {
+            return;
+        }
+
+        long ticks = Math.min(nowTick - this.currentTick, this.slots.length);
+        for (long i = 1; i <= ticks; i++) {
+            Timeout timeout = this.slots[(int) ((this.currentTick + i) & this.mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline <= now) {
+                    cancel(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        this.currentTick = nowTick;
+    }
+
+    public int size() {
+        return this.size;
+    }
+}
\ No newline at end of file
@@ -1,17 +1,73 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.text.SimpleDateFormat;
 import java.util.Locale;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 class Utils {
-    public static int MaxConnectionsPerThread = 2;
+    public static int AdmissionInitialLimit = 64;
+    public static int AdmissionMinLimit = 4;
+    public static int AdmissionMaxLimit = 1024;
+    public static long AdmissionTargetLatency = 200;
+    public static int AdmissionBackoffPercent = 90;
+    public static long AdmissionWindow = 1000;
+    public static int AdmissionRetryAfter = 1;
     public static String ServerName = "Austin's Really Cool HTTP Server";
     public static int TimeoutLength = 3000;
+    public static int KeepAliveTimeout = 5000;
+    public static String AcceptMode = "acceptor";
+    public static String ConnectionEngine = "select";
+    public static long ConfigWatchDelay = 200;
+    public static String LogLevel = "debug";
+    public static String LogFile = null;
+    public static long LogMaxSize = 10 * 1024 * 1024;
+    public static long LogMaxFiles = 5;
+    public static long LogRingSize = 4096;
+    public static long LogFlushInterval = 100;
+    public static String AccessLog = "off";
+    public static String AcceptBalance = "leastconn";
+    public static int AcceptBatch = 64;
+    public static int AcceptBacklog = 1024;
+    public static int TimerWheelSlots = 512;
+    public static long TimerTickMillis = 50;
+    public static int InitialHeaderBufferSize = 1024;
+    public static int MaxHeaderSize = 8192;
+    public static int MaxHeaderCount = 100;
+    public static int MaxPipelineDepth = 16;
+    public static long FileCacheSize = 64 * 1024 * 1024;
+    public static long FileCacheMaxEntrySize = 1024 * 1024;
+    public static long OpenFileCacheValid = 1000;
+    public static long OpenFileCacheSize = 10000;
+    public static long OpenFileCacheMaxDescriptors = 256;
+    public static long HtaccessCheckInterval = 1000;
+    public static long HtaccessVerifiedMax = 1024;
+    public static int MaxRanges = 16;
+    public static long MaxRequestBodySize = 10485760;
+    public static long RequestBodyBufferSize = 65536;
+    public static boolean ETagContentHash = false;
+    public static boolean Compression = true;
+    public static int CompressionLevel = 6;
+    public static long CompressMinSize = 256;
+    public static long CompressedCacheSize = 16 * 1024 * 1024;
+    public static long TransferChunkSize = 256 * 1024;
+    public static long BufferPoolMaxFree = 1024;
+    public static long MmapCacheSize = 0;
+    public static long MmapMaxFileSize = 16 * 1024 * 1024;
+    public static long CgiThreads = 8;
+    public static long CgiQueueSize = 64;
+    public static long CgiTimeout = 10000;
+    public static int CgiRetryAfter = 1;
+    public static long CgiStreamDelay = 100;
+    public static long CgiStreamBufferSize = 64 * 1024;
+    public static int CgiChunkSize = 8 * 1024;
+    public static long CgiWorkerMin = 1;
+    public static long CgiWorkerMax = 4;
+    public static long CgiWorkerMaxRequests = 1000;
 
     public static List<Map<String, String>> loadConfiguration(String path) throws Exception {
         List<Map<String, String>> result = new ArrayList<>();
@@ -19,10 +75,11 @@ class Utils {
         Map<String, String> config =  new HashMap<String, String>();
         Map<String, String> virtualHosts = new HashMap<String, String>();
         
-        InputStream inputStream = new FileInputStream(new File(path));
-
         ApacheConfigParser parser = new ApacheConfigParser();
-        ConfigNode root = parser.parse(inputStream);
+        ConfigNode root;
+        try (InputStream inputStream = new FileInputStream(new File(path))) {
+            root = parser.parse(inputStream);
+        }
 
         // Create queue
         Stack<ConfigNode> queue = new Stack<ConfigNode>();
@@ -45,8 +102,8 @@ class Utils {
                     throw new Exception("DocumentRoot must be inside current directory");
                 }
 
-                // Remove CWD part of path
-                documentRoot = absolutePath.toString().substring(System.getProperty("user.dir").length());
+                // Resolved once here, requests only append their path
+                documentRoot = absolutePath.toString();
                 if (virtualHosts.size() == 0) {
                     virtualHosts.put("__DEFAULT__", documentRoot);
                 }
@@ -62,13 +119,57 @@ class Utils {
         return result;
     }
 
+    public static long getConfigLong(Map<String, String> config, String name, long defaultValue) {
+        String value = config.get(name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    // Builds a warm worker pool for every script listed in CgiWorkerScripts, keyed by absolute path
+    public static Map<String, CgiWorkerPool> loadCgiWorkerPools(Map<String, String> config, CgiExecutor executor) throws Exception {
+        Map<String, CgiWorkerPool> pools = new HashMap<String, CgiWorkerPool>();
+        String scripts = config.get("CgiWorkerScripts");
+        if (scripts == null || scripts.isBlank()) {
+            return pools;
+        }
+
+        int min = (int) getConfigLong(config, "CgiWorkerMin", CgiWorkerMin);
+        int max = (int) getConfigLong(config, "CgiWorkerMax", CgiWorkerMax);
+        int maxRequests = (int) getConfigLong(config, "CgiWorkerMaxRequests", CgiWorkerMaxRequests);
+        for (String script : scripts.trim().split("\\s+")) {
+            Path absolutePath = Paths.get(System.getProperty("user.dir"), script).normalize();
+            if (!absolutePath.startsWith(Paths.get(System.getProperty("user.dir")))) {
+                throw new Exception("CgiWorkerScripts must be inside current directory");
+            }
+            pools.put(absolutePath.toString(), new CgiWorkerPool(absolutePath.toString(), min, max, maxRequests, executor.getTimeoutMillis(), executor));
+        }
+        return pools;
+    }
+
+    // Returns the first of the entity tags named by an If-None-Match list (weak comparison, * names any), or null
+    public static String matchETag(String header, String... etags) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return etags[0];
+            }
+            tag = tag.startsWith("W/") ? tag.substring(2) : tag;
+            for (String etag : etags) {
+                if (tag.equals(etag)) {
+                    return etag;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Thread safe, unlike SimpleDateFormat, so one instance serves every loop
+    private static final DateTimeFormatter HttpDateFormat = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+
     public static String getFormattedDate(Date date) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
-        return dateFormat.format(date);
+        return HttpDateFormat.format(date.toInstant());
     }
 
     public static Date parseFormattedDate(String date) throws Exception {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
-        return dateFormat.parse(date);
+        return Date.from(Instant.from(HttpDateFormat.parse(date)));
     }
 }
\ No newline at end of file
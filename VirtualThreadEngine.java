@@ -0,0 +1,329 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+// Serves each connection on its own virtual thread with blocking I/O (ConnectionEngine virtual)
+class VirtualThreadEngine implements Engine, Runnable {
+    private final ServerSocketChannel listenChannel;
+    private final AdmissionControl admission = new AdmissionControl();
+    private final Metrics metrics = new Metrics();
+    // Not synchronized, a virtual thread blocked on a monitor pins its carrier
+    private final ReentrantLock metricsLock = new ReentrantLock();
+    private final RequestHandler handler;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Thread.Builder threads = Thread.ofVirtual().name("connection-", 1);
+    private volatile long accepted;
+
+    public VirtualThreadEngine(ServerSocketChannel listenChannel) throws IOException {
+        this.listenChannel = listenChannel;
+        this.listenChannel.configureBlocking(true);
+        this.handler = new RequestHandler(this);
+    }
+
+    public int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    public AdmissionControl getAdmission() {
+        return this.admission;
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    public String getStats() {
+        return "connections=" + this.connections.size() + ", accepted=" + this.accepted;
+    }
+
+    // Stops accepting, connections already open finish like a loop's do
+    public void shutdown() {
+        try {
+            this.listenChannel.close();
+        } catch (IOException e) {
+            Log.error("Failed to close listen channel: ", e.getMessage());
+        }
+    }
+
+    public void run() {
+        Thread sweeper = new Thread(this::sweep, "connection-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+
+        while (!HttpDispatch.shutdown) {
+            try {
+                Connection connection = new Connection(this.listenChannel.accept());
+                this.accepted += 1;
+                this.connections.add(connection);
+                this.threads.start(connection);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                Log.error("Failed to accept connection: ", e.getMessage());
+            }
+        }
+
+        // Virtual threads are daemons, so keep the server up until the last connection is done
+        while (!this.connections.isEmpty()) {
+            try {
+                Thread.sleep(Utils.TimerTickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Closes connections that are past their deadline, every tick
+    private void sweep() {
+        while (true) {
+            try {
+                Thread.sleep(Utils.TimerTickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Connection connection : this.connections) {
+                connection.expire(now);
+            }
+        }
+    }
+
+    private void recordResponse(HttpResponse response, Connection connection) {
+        long now = System.nanoTime();
+        this.metricsLock.lock();
+        try {
+            this.metrics.recordResponse(response.statusCode, response.request);
+            this.metrics.write.record(now - response.enqueuedNanos);
+            this.metrics.addBytesIn(connection.bytesIn.getAndSet(0));
+            this.metrics.addBytesOut(connection.bytesOut);
+            connection.bytesOut = 0;
+            if (response.request != null) {
+                this.metrics.parse.record(connection.parseNanos);
+                this.metrics.handle.record(response.enqueuedNanos - response.request.startNanos);
+                // Server-side time only, so big files and slow clients don't drag the limit down
+                this.admission.recordLatency(response.enqueuedNanos - response.request.startNanos);
+            }
+        } finally {
+            this.metricsLock.unlock();
+        }
+        Log.access(response, response.request, connection.channel.socket().getInetAddress(), response.request == null ? 0 : now - response.request.startNanos);
+    }
+
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final RequestState state = new RequestState(null);
+        private final BufferPool pool = new BufferPool(1, false);
+
+        // Responses from CGI workers, and empty wakeups when a streamed response has more output
+        private final LinkedBlockingQueue<Optional<HttpResponse>> posted = new LinkedBlockingQueue<Optional<HttpResponse>>();
+
+        // What the connection is waiting for (TimerWheel.Timeout kinds) and until when, 0 while a CGI worker has it
+        private volatile int kind;
+        private volatile long deadline;
+        private volatile long bodyDeadline;
+        private volatile boolean timedOut;
+
+        // Recorded with the next response, bytesIn is also added to by a body pump that may outlive it
+        private long parseNanos;
+        private final AtomicLong bytesIn = new AtomicLong();
+        private long bytesOut;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            try {
+                if (!VirtualThreadEngine.this.admission.admit(VirtualThreadEngine.this.connections.size())) {
+                    // Over the limit, turned away like a loop does
+                    Log.info("Max connections reached");
+                    this.channel.write(AdmissionControl.Overloaded.duplicate());
+                    this.channel.shutdownOutput();
+                    this.channel.read(ByteBuffer.allocate(Utils.InitialHeaderBufferSize));
+                    return;
+                }
+                serve();
+            } catch (ClosedChannelException e) {
+                // Closed by the sweeper
+            } catch (Exception e) {
+                Log.error("Failed to process request: ", e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private void serve() throws Exception {
+            while (true) {
+                // Read until a request is ready to handle, a big body carries on arriving after that. Parse time is
+                // counted from its first bytes, the thread is blocked on the socket the rest of the time.
+                long readStart = 0;
+                while (!this.state.doneReading) {
+                    schedule();
+                    int bytesRead;
+                    try {
+                        bytesRead = this.state.readFrom(this.channel, this.pool);
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        Log.debug("Failed to parse request: ", e.getMessage());
+                        HttpRequestParser.ParseException parseException = e instanceof HttpRequestParser.ParseException ? (HttpRequestParser.ParseException) e : null;
+                        respond(parseException == null ? new HttpResponse(400, "Bad Request") : new HttpResponse(parseException.statusCode, parseException.statusMessage), null, null);
+                        return;
+                    }
+
+                    if (bytesRead == -1) {
+                        if (this.timedOut && !this.state.isIdle()) {
+                            // Client started a request and stopped sending, send 408
+                            Log.debug("Connection timed out");
+                            respond(new HttpResponse(408, "Request Timeout"), null, null);
+                        }
+                        return;
+                    }
+                    this.bytesIn.addAndGet(bytesRead);
+                    readStart = readStart == 0 ? System.nanoTime() : readStart;
+                }
+                this.parseNanos = readStart == 0 ? 0 : System.nanoTime() - readStart;
+
+                HttpRequest request = this.state.request;
+                request.startNanos = System.nanoTime();
+                HttpResponse response = VirtualThreadEngine.this.handler.handle(request, this.channel.socket(), ready -> this.posted.add(Optional.ofNullable(ready)));
+
+                // The rest of a big body is read alongside, until then this thread only writes
+                Thread pump = this.state.receiving == null ? null : VirtualThreadEngine.this.threads.start(this::pumpBody);
+
+                this.deadline = 0;
+                while (response == null) {
+                    response = this.posted.take().orElse(null);
+                }
+                if (!respond(response, request, pump)) {
+                    return;
+                }
+                this.state.nextRequest(this.pool);
+            }
+        }
+
+        // Writes the response, returns false if the connection is to be closed
+        private boolean respond(HttpResponse response, HttpRequest request, Thread pump) throws Exception {
+            this.state.enqueue(response, request);
+            response.encode(this.pool);
+            while (response.hasPendingBuffers()) {
+                schedule(TimerWheel.Timeout.WriteStall);
+                this.bytesOut += response.gatherBuffers != null ? this.channel.write(response.gatherBuffers) : this.channel.write(response.outputBuffer);
+            }
+            while (response.hasStreamingBody() && this.state.bodyPosition < response.contentLength) {
+                schedule(TimerWheel.Timeout.WriteStall);
+                long transferred = response.transferBody(this.state.bodyPosition, Utils.TransferChunkSize, this.channel);
+                this.state.bodyPosition += transferred;
+                this.bytesOut += transferred;
+            }
+            while (response.hasPendingStream()) {
+                ByteBuffer streamBuffer = response.nextStreamBuffer();
+                if (streamBuffer != null) {
+                    schedule(TimerWheel.Timeout.WriteStall);
+                    this.bytesOut += this.channel.write(streamBuffer);
+                } else if (response.hasPendingStream()) {
+                    // Park until the script produces more output
+                    this.deadline = 0;
+                    this.posted.take();
+                }
+            }
+
+            // The next request starts after the body, unless the connection is closing anyway
+            if (pump != null && !response.closeConnection) {
+                pump.join();
+            }
+            this.state.responses.poll();
+            this.state.bodyPosition = 0;
+            response.close();
+            recordResponse(response, this);
+            return !response.closeConnection && this.channel.isOpen();
+        }
+
+        // Runs on its own virtual thread, reading the rest of a body with its own buffers
+        private void pumpBody() {
+            RequestBody body = this.state.receiving;
+            BufferPool bodyPool = new BufferPool(1, false);
+            long pumped = 0;
+            try {
+                while (this.state.receiving != null) {
+                    // No deadline while a slow script holds the body back, like a loop dropping OP_READ
+                    this.bodyDeadline = 0;
+                    body.awaitRoom();
+                    this.bodyDeadline = System.currentTimeMillis() + Utils.TimeoutLength;
+                    int bytesRead = this.state.readFrom(this.channel, bodyPool);
+                    if (bytesRead == -1) {
+                        throw new EOFException("Client closed mid-body");
+                    }
+                    pumped += bytesRead;
+                }
+            } catch (Exception e) {
+                if (!(e instanceof ClosedChannelException)) {
+                    Log.debug("Failed to read request body: ", e.getMessage());
+                }
+                body.cancel();
+                closeChannel();
+            } finally {
+                this.bodyDeadline = 0;
+                this.bytesIn.addAndGet(pumped);
+            }
+        }
+
+        // Sets the read deadline the way a loop's updateTimeout does
+        private void schedule() {
+            if (this.state.isIdle()) {
+                schedule(TimerWheel.Timeout.Idle);
+            } else if (this.state.request == null && this.state.receiving == null) {
+                if (this.kind != TimerWheel.Timeout.HeaderRead || this.deadline == 0) {
+                    schedule(TimerWheel.Timeout.HeaderRead);
+                }
+            } else {
+                schedule(TimerWheel.Timeout.BodyRead);
+            }
+        }
+
+        private void schedule(int kind) {
+            this.kind = kind;
+            this.deadline = System.currentTimeMillis() + (kind == TimerWheel.Timeout.Idle ? Utils.KeepAliveTimeout : Utils.TimeoutLength);
+        }
+
+        // Called by the sweeper. A request cut short gets its 408 from its own thread, which sees end of input.
+        void expire(long now) {
+            long deadline = this.deadline;
+            long bodyDeadline = this.bodyDeadline;
+            if ((deadline == 0 || now < deadline) && (bodyDeadline == 0 || now < bodyDeadline)) {
+                return;
+            }
+            this.deadline = 0;
+            this.bodyDeadline = 0;
+            if (this.kind == TimerWheel.Timeout.HeaderRead || this.kind == TimerWheel.Timeout.BodyRead) {
+                this.timedOut = true;
+                try {
+                    this.channel.shutdownInput();
+                    return;
+                } catch (IOException e) {
+                    // Fall through and close
+                }
+            }
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                Log.error("Failed to close channel: ", e.getMessage());
+            }
+        }
+
+        private void close() {
+            VirtualThreadEngine.this.connections.remove(this);
+            this.state.release(this.pool);
+            closeChannel();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,66 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Connection setup rate for one AcceptMode
+// run: java -classpath out AcceptBenchmark [acceptor|reuseport|shared] [loops] [clients] [connections per client]
+public class AcceptBenchmark {
+    private static final byte[] Request = "GET /load HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        Utils.AcceptMode = args.length > 0 ? args[0] : "acceptor";
+        int loops = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int perClient = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        // Only the /load heartbeat is requested, so no document roots or caches are needed
+        Utils.AdmissionMaxLimit = Integer.MAX_VALUE;
+        Utils.AdmissionInitialLimit = Integer.MAX_VALUE - 1;
+        HttpServer.config = new HashMap<String, String>();
+        HttpServer.routes = new RoutingTable(HttpServer.config, new HashMap<String, String>(), 1);
+        HttpServer.cgiExecutor = new CgiExecutor(1, 1, Utils.CgiTimeout, Utils.CgiStreamDelay);
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        HttpDispatch[] dispatchers = HttpServer.startSelectLoops(port, loops);
+
+        AtomicLong failures = new AtomicLong();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                byte[] response = new byte[1024];
+                for (int j = 0; j < perClient; j++) {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        socket.getOutputStream().write(Request);
+                        InputStream in = socket.getInputStream();
+                        while (in.read(response) != -1) {
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long connections = (long) clients * perClient;
+        System.out.printf("%s: %d loops, %d clients, %.0f connections/s, %d failed%n", Utils.AcceptMode, loops, clients, connections / seconds, failures.get());
+        for (int i = 0; i < dispatchers.length; i++) {
+            System.out.println("  loop " + (i + 1) + ": " + dispatchers[i].getAcceptStats());
+        }
+        if (HttpServer.acceptor != null) {
+            System.out.println("  acceptor: " + HttpServer.acceptor.getStats());
+        }
+        System.exit(0);
+    }
+}
\ No newline at end of file
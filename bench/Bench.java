@@ -0,0 +1,63 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+
+
+// Minimal JMH stand-in: warmup, timed iterations and exact bytes allocated per op, checked against a baseline file
+class Bench {
+    public interface Op {
+        void run() throws Exception;
+    }
+
+    // Written by benchmarks so the JIT can't drop their work
+    public static long sink;
+
+    private static final Map<String, Long> results = new LinkedHashMap<String, Long>();
+
+    public static void run(String name, int warmup, int iterations, Op op) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+
+        for (int i = 0; i < warmup; i++) {
+            op.run();
+        }
+
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        results.put(name.replace(' ', '_'), allocated / iterations);
+        System.out.printf("%-32s %10.1f ns/op %8d B/op%n", name, (double) elapsed / iterations, allocated / iterations);
+    }
+
+    public static void writeBaseline(String path) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : results.entrySet()) {
+            sb.append(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        Files.writeString(Path.of(path), sb.toString());
+    }
+
+    // Returns false if any benchmark allocates more than 10% (and 16 bytes) over its baseline
+    public static boolean checkBaseline(String path) throws IOException {
+        boolean passed = true;
+        for (String line : Files.readAllLines(Path.of(path))) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2) {
+                continue;
+            }
+            Long bytes = results.get(parts[0]);
+            long baseline = Long.parseLong(parts[1]);
+            if (bytes != null && bytes > baseline * 1.1 && bytes - baseline > 16) {
+                System.out.println("[ERROR] " + parts[0] + " allocates " + bytes + " B/op, baseline " + baseline);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+}
\ No newline at end of file
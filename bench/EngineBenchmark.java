@@ -0,0 +1,126 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Compares the two ConnectionEngines on a small or large static file or a CGI script
+// run: java -classpath out EngineBenchmark [select|virtual] [small|large|cgi] [clients] [requests per client]
+public class EngineBenchmark {
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : "select";
+        String workload = args.length > 1 ? args[1] : "small";
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int perClient = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        Path root = Files.createTempDirectory("engine-benchmark");
+        Files.write(root.resolve("small.html"), new byte[1024]);
+        Files.write(root.resolve("large.html"), new byte[1024 * 1024]);
+        Path script = Files.writeString(root.resolve("script"), "#!/bin/sh\necho\necho hello\n");
+        script.toFile().setExecutable(true);
+        String path = workload.equals("cgi") ? "/script" : "/" + workload + ".html";
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        Utils.AdmissionMaxLimit = Integer.MAX_VALUE;
+        Utils.AdmissionInitialLimit = Integer.MAX_VALUE - 1;
+        HttpServer.config = new HashMap<String, String>();
+        HttpServer.routes = new RoutingTable(HttpServer.config, Map.of("__DEFAULT__", root.toString()), 1);
+        HttpServer.fileCache = new FileCache(Utils.FileCacheSize, Utils.FileCacheMaxEntrySize);
+        HttpServer.compressedFileCache = new CompressedFileCache(Utils.CompressedCacheSize);
+        HttpServer.openFileCache = new OpenFileCache(Utils.OpenFileCacheValid, (int) Utils.OpenFileCacheSize, (int) Utils.OpenFileCacheMaxDescriptors);
+        HttpServer.htaccessCache = new HtaccessCache(Utils.HtaccessCheckInterval, (int) Utils.HtaccessVerifiedMax);
+        HttpServer.mappedFileCache = new MappedFileCache(Utils.MmapCacheSize, Utils.MmapMaxFileSize);
+        HttpServer.cgiExecutor = new CgiExecutor((int) Utils.CgiThreads, (int) Utils.CgiQueueSize, Utils.CgiTimeout, Utils.CgiStreamDelay);
+        HttpServer.cgiWorkerPools = new HashMap<String, CgiWorkerPool>();
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        if (engine.equals("virtual")) {
+            HttpServer.startVirtualThreadEngine(port);
+        } else {
+            HttpServer.startSelectLoops(port, Runtime.getRuntime().availableProcessors());
+        }
+
+        AtomicLong failures = new AtomicLong();
+        LatencyHistogram[] latencies = new LatencyHistogram[clients];
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            LatencyHistogram latency = latencies[i] = new LatencyHistogram();
+            threads[i] = new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                    for (int j = 0; j < perClient; j++) {
+                        long sent = System.nanoTime();
+                        out.write(request);
+                        if (readResponse(in) != 200) {
+                            failures.incrementAndGet();
+                        }
+                        latency.record(System.nanoTime() - sent);
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram latency : latencies) {
+            total.add(latency);
+        }
+        System.out.printf("%s %s: %d clients, %.0f requests/s, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d failed%n", engine, workload, clients,
+                total.getCount() / seconds, total.getValueAtQuantile(0.5) / 1e6, total.getValueAtQuantile(0.99) / 1e6, total.getMax() / 1e6, failures.get());
+        System.exit(0);
+    }
+
+    // Reads one response, sized by Content-Length or chunked, and returns its status code
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        long contentLength = 0;
+        boolean chunked = false;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            }
+        }
+
+        if (chunked) {
+            for (long size = Long.parseLong(readLine(in), 16); size > 0; size = Long.parseLong(readLine(in), 16)) {
+                in.skipNBytes(size);
+                readLine(in);
+            }
+            readLine(in);
+        } else {
+            in.skipNBytes(contentLength);
+        }
+        return Integer.parseInt(statusLine.substring(9, 12));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+}
\ No newline at end of file
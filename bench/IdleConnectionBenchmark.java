@@ -0,0 +1,94 @@
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+// Memory an idle keep-alive connection keeps, before and after returning buffers to the pool
+// run: java -XX:+UseSerialGC -classpath out IdleConnectionBenchmark [connections]
+public class IdleConnectionBenchmark {
+    private static final byte[] Request = ("GET /index.html HTTP/1.1\r\n"
+            + "Host: cicada.cs.yale.edu\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+            + "Accept: text/html, text/plain\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        ServerSocketChannel listenChannel = ServerSocketChannel.open();
+        listenChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        List<SocketChannel> clients = new ArrayList<SocketChannel>();
+        List<SocketChannel> servers = new ArrayList<SocketChannel>();
+        for (int i = 0; i < connections; i++) {
+            clients.add(SocketChannel.open(listenChannel.getLocalAddress()));
+            SocketChannel server = listenChannel.accept();
+            server.configureBlocking(false);
+            servers.add(server);
+        }
+
+        measure("before: buffer kept", servers, clients, null);
+        measure("after: BufferPool", servers, clients, new BufferPool((int) Utils.BufferPoolMaxFree));
+
+        for (int i = 0; i < connections; i++) {
+            clients.get(i).close();
+            servers.get(i).close();
+        }
+        listenChannel.close();
+    }
+
+    private static void measure(String name, List<SocketChannel> servers, List<SocketChannel> clients, BufferPool pool) throws Exception {
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+
+        List<RequestState> states = new ArrayList<RequestState>(servers.size());
+        for (int i = 0; i < servers.size(); i++) {
+            RequestState state = new RequestState(null);
+            serveOne(state, servers.get(i), clients.get(i), pool == null ? new BufferPool(0) : pool);
+            if (pool == null) {
+                // What every connection used to hold between requests
+                state.in = ByteBuffer.allocate(Utils.InitialHeaderBufferSize);
+                state.parser = new HttpRequestParser(Utils.MaxHeaderCount);
+                state.responses = new ArrayDeque<HttpResponse>();
+            }
+            states.add(state);
+        }
+
+        long heap = usedHeap() - heapBefore;
+        long direct = usedDirect() - directBefore;
+        System.out.printf("%-22s %6d B heap/conn %6d B direct/conn (%d connections)%n", name, heap / states.size(), direct / states.size(), states.size());
+        if (pool != null) {
+            System.out.println("pool: " + pool.getStats());
+        }
+    }
+
+    // Reads one request on the connection and moves the state on to waiting for the next one
+    private static void serveOne(RequestState state, SocketChannel server, SocketChannel client, BufferPool pool) throws Exception {
+        client.write(ByteBuffer.wrap(Request));
+        while (!state.doneReading) {
+            state.readFrom(server, pool);
+        }
+        state.nextRequest(pool);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean bean : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (bean.getName().equals("direct")) {
+                return bean.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
\ No newline at end of file